@@ -27,6 +27,7 @@ import com.google.sps.data.ConversationOutput;
 import com.google.sps.data.ListDisplay;
 import com.google.sps.data.Pair;
 import com.google.sps.data.RecommendationsClient;
+import com.google.sps.utils.ListTokenizer;
 import com.google.sps.utils.MemoryUtils;
 import com.google.sps.utils.TimeUtils;
 import java.net.URISyntaxException;
@@ -252,13 +253,18 @@ public class MemoryAgent implements Agent {
    * @param parameters Map containing the detected entities in the user's intent.
    */
   private void showList(Map<String, Value> parameters) throws InvalidRequestException {
-    List<Entity> pastLists = MemoryUtils.getPastUserLists(datastore, userID, parameters);
+    String listInput = parameters.get("list-object").getStringValue();
+    boolean multipleLists =
+        !listInput.isEmpty() && listInput.charAt(listInput.length() - 1) == 's';
+    List<Entity> pastLists =
+        multipleLists
+            ? MemoryUtils.getPastUserLists(datastore, userID, parameters)
+            : MemoryUtils.getPastUserLists(datastore, userID, parameters, 1);
     if (pastLists.isEmpty()) {
       fulfillment = "Sorry, no lists were found.";
       return;
     }
-    String listInput = parameters.get("list-object").getStringValue();
-    if (listInput.charAt(listInput.length() - 1) == 's') {
+    if (multipleLists) {
       List<ListDisplay> allLists = new ArrayList<>();
       for (Entity e : pastLists) {
         allLists.add(entityToListDisplay(e));
@@ -363,15 +369,7 @@ public class MemoryAgent implements Agent {
    * @return List of strings where each element is an item
    */
   public static ArrayList<String> unpackObjects(String allItemsString) {
-    String[] commaSplit = allItemsString.split(",[\\s]*[and]*[\\s]+");
-    if (commaSplit.length > 0) {
-      String[] finalSplit = commaSplit[commaSplit.length - 1].split("[\\s]+and[\\s]+");
-      ArrayList<String> listItems = new ArrayList<>(Arrays.asList(commaSplit));
-      listItems.remove(commaSplit.length - 1);
-      listItems.addAll(new ArrayList<String>(Arrays.asList(finalSplit)));
-      return listItems;
-    }
-    return new ArrayList<>();
+    return ListTokenizer.unpackObjects(allItemsString);
   }
 
   /*
@@ -394,7 +392,7 @@ public class MemoryAgent implements Agent {
    * @return cleaned version of the input string without the unwanted words
    */
   public static String cleanStringEndpoints(Set<String> unwantedStrings, String stringToClean) {
-    String[] listWords = stringToClean.split("\\s+");
+    String[] listWords = ListTokenizer.splitWords(stringToClean);
     int start = 0;
     int end = listWords.length - 1;
     // Remove unnecessary words in the beginning
@@ -470,7 +468,7 @@ public class MemoryAgent implements Agent {
       updateList(recommendedItems);
       return;
     }
-    String[] listWords = listObjects.split("\\s+");
+    String[] listWords = ListTokenizer.splitWords(listObjects);
     List<String> addObjects = new ArrayList<>();
     int addObjectEndIndex = getAddObjects(listWords, addObjects);
     List<String> removeObjects = getRemoveObjects(listWords, addObjectEndIndex);
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sps.data;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import java.net.ConnectException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.client.ResourceAccessException;
+
+/**
+ * Queue of list updates sent to the recommendations API in the background, through the
+ * "list-updates" push task queue. Each update becomes a task that App Engine delivers to the
+ * ListUpdateServlet, which sends it with deliver.
+ *
+ * <p>Push queues do not preserve order, and an update that starts a new list decays the weights of
+ * the user's previous lists, so it must not be applied after later additions to the new list.
+ * Updates that start a new list are therefore sent before submit returns, and only additions and
+ * rejections are queued. An update that starts a new list is only queued if the recommendations
+ * service cannot be connected to.
+ *
+ * <p>Updates are only retried when the recommendations service cannot be connected to, since
+ * storing an update is not idempotent and any later failure may happen after it was stored. The
+ * task queue retries them with backoff up to the limit set in queue.xml. Updates that cannot be
+ * added to the task queue are dropped. Counters of these events on this instance are available
+ * through getStats.
+ */
+public class ListUpdateQueue {
+
+  private static Logger log = LoggerFactory.getLogger(ListUpdateQueue.class);
+  public static final String QUEUE_NAME = "list-updates";
+  public static final String HANDLER_PATH = "/listUpdate";
+  public static final String USER_ID_PARAM = "userID";
+  public static final String LIST_NAME_PARAM = "stemmedListName";
+  public static final String ITEM_PARAM = "item";
+  public static final String NEW_LIST_PARAM = "newList";
+  public static final String POSITIVE_FEEDBACK_PARAM = "positiveFeedback";
+
+  /** Sends one list update to the recommendations API. */
+  public interface Sender {
+    void send(
+        String userID,
+        String stemmedListName,
+        List<String> items,
+        boolean newList,
+        boolean positiveFeedback);
+  }
+
+  private final Queue queue;
+  private final Sender sender;
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * ListUpdateQueue constructor.
+   *
+   * @param queue Push task queue that delivers updates to HANDLER_PATH
+   * @param sender Sender of delivered list updates
+   */
+  public ListUpdateQueue(Queue queue, Sender sender) {
+    this.queue = queue;
+    this.sender = sender;
+  }
+
+  /**
+   * Sends a list update that starts a new list, or adds any other list update to the task queue.
+   * Updates that cannot be added to the task queue are dropped.
+   *
+   * @param userID String containing the user's unique ID
+   * @param stemmedListName Stemmed name of the list
+   * @param items List of strings containing items to add to list
+   * @param newList Indicates whether the list is a new list (true) or updating existing (false)
+   * @param positiveFeedback Boolean to indicate if the items are added (true) or rejected (false)
+   */
+  public void submit(
+      String userID,
+      String stemmedListName,
+      List<String> items,
+      boolean newList,
+      boolean positiveFeedback) {
+    submitted.incrementAndGet();
+    if (newList && deliver(userID, stemmedListName, items, newList, positiveFeedback)) {
+      return;
+    }
+    TaskOptions task =
+        TaskOptions.Builder.withUrl(HANDLER_PATH)
+            .param(USER_ID_PARAM, userID)
+            .param(LIST_NAME_PARAM, stemmedListName)
+            .param(NEW_LIST_PARAM, String.valueOf(newList))
+            .param(POSITIVE_FEEDBACK_PARAM, String.valueOf(positiveFeedback));
+    for (String item : items) {
+      task.param(ITEM_PARAM, item);
+    }
+    try {
+      queue.add(task);
+    } catch (RuntimeException e) {
+      rejected.incrementAndGet();
+      log.error("Could not queue update of " + stemmedListName + ", dropping it: " + e);
+    }
+  }
+
+  /**
+   * Sends a list update, as delivered by the task queue.
+   *
+   * @param userID String containing the user's unique ID
+   * @param stemmedListName Stemmed name of the list
+   * @param items List of strings containing items to add to list
+   * @param newList Indicates whether the list is a new list (true) or updating existing (false)
+   * @param positiveFeedback Boolean to indicate if the items are added (true) or rejected (false)
+   * @return False if the update was not sent and should be retried, true otherwise
+   */
+  public boolean deliver(
+      String userID,
+      String stemmedListName,
+      List<String> items,
+      boolean newList,
+      boolean positiveFeedback) {
+    try {
+      sender.send(userID, stemmedListName, items, newList, positiveFeedback);
+      sent.incrementAndGet();
+      return true;
+    } catch (RuntimeException e) {
+      if (isRetryable(e)) {
+        retried.incrementAndGet();
+        log.warn("Could not connect to send update of " + stemmedListName + ": " + e);
+        return false;
+      }
+      failed.incrementAndGet();
+      log.error("Failed to send update of " + stemmedListName + ": " + e);
+      return true;
+    }
+  }
+
+  /**
+   * Returns the counters of the queue on this instance: submitted, rejected, retried, sent and
+   * failed updates.
+   *
+   * @return Map of counter names to values
+   */
+  public Map<String, Long> getStats() {
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("submitted", submitted.get());
+    stats.put("rejected", rejected.get());
+    stats.put("retried", retried.get());
+    stats.put("sent", sent.get());
+    stats.put("failed", failed.get());
+    return stats;
+  }
+
+  /** Returns true for failures that happened before the update was sent. */
+  private static boolean isRetryable(RuntimeException e) {
+    return e instanceof ResourceAccessException
+        && (e.getCause() instanceof ConnectException
+            || e.getCause() instanceof ConnectTimeoutException);
+  }
+}
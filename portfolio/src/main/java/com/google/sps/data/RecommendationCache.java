@@ -0,0 +1,228 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process cache of the top recommendations of each user, list and recommendation mode, so that
+ * list-building conversations do not call the recommendations API on every turn.
+ *
+ * <p>Recommendations are fetched with a few more items than requested. A cached result serves any
+ * later request of the same key whose excluded items include those of the cached result, by
+ * filtering it, as long as enough items remain. Results are fresh for a short time. After that the
+ * first request of a key refreshes the result on its own thread, since the instance may not run
+ * background threads, while other requests are served the stale result until it expires. Results
+ * of a user's list are dropped whenever this instance sends an update of that list, and a load
+ * started before the update does not store its result.
+ */
+public class RecommendationCache {
+
+  private static Logger log = LoggerFactory.getLogger(RecommendationCache.class);
+  private static final int EXTRA_ITEMS = 10;
+  private static final int MAX_ENTRIES = 1000;
+
+  /** Fetches up to k recommendations that are not excluded, in descending order of frequency. */
+  public interface Loader {
+    List<Pair<String, Double>> load(int k, List<String> exclude);
+  }
+
+  private final long freshMillis;
+  private final long maxStaleMillis;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<String, Long> listVersions = new ConcurrentHashMap<>();
+  private final AtomicLong version = new AtomicLong();
+  private volatile long clearedVersion;
+
+  /** Recommendations fetched for one key. */
+  private static class Entry {
+    private final List<Pair<String, Double>> items;
+    private final Set<String> exclude;
+    private final boolean complete;
+    private final long fetchedAt;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    Entry(List<Pair<String, Double>> items, Set<String> exclude, int k, long fetchedAt) {
+      this.items = items;
+      this.exclude = exclude;
+      this.complete = items.size() < k;
+      this.fetchedAt = fetchedAt;
+    }
+
+    /**
+     * Returns the top k cached items that are not excluded, or null if the excluded items do not
+     * include those of the entry or too few items remain.
+     */
+    List<Pair<String, Double>> top(int k, Set<String> requestExclude) {
+      if (!requestExclude.containsAll(exclude)) {
+        return null;
+      }
+      List<Pair<String, Double>> result = new ArrayList<>(k);
+      for (Pair<String, Double> item : items) {
+        if (result.size() == k) {
+          return result;
+        }
+        if (!requestExclude.contains(item.getKey())) {
+          result.add(item);
+        }
+      }
+      return result.size() == k || complete ? result : null;
+    }
+  }
+
+  /**
+   * RecommendationCache constructor.
+   *
+   * @param freshMillis Time a result is served without being refreshed
+   * @param maxStaleMillis Time after which a result is no longer served
+   */
+  public RecommendationCache(long freshMillis, long maxStaleMillis) {
+    this.freshMillis = freshMillis;
+    this.maxStaleMillis = maxStaleMillis;
+  }
+
+  /**
+   * Returns the top k recommendations of a user's list that are not excluded, from the cache or
+   * from the loader.
+   *
+   * @param userID String containing the user's unique ID
+   * @param stemmedListName Stemmed name of the list
+   * @param mode Kind of recommendations, RecommendationsClient.PAST_RECOMMENDATIONS or
+   *     USER_RECOMMENDATIONS
+   * @param k Maximum number of recommendations to return
+   * @param exclude Stemmed items that should not be recommended
+   * @param loader Loader of recommendations from the recommendations API
+   * @return List of up to k pairs of items and their corresponding user preference frequency, in
+   *     descending order of frequency
+   */
+  public List<Pair<String, Double>> get(
+      String userID,
+      String stemmedListName,
+      String mode,
+      int k,
+      Collection<String> exclude,
+      Loader loader) {
+    String listKey = listKey(userID, stemmedListName);
+    String key = listKey + "\n" + mode;
+    Set<String> excludeSet = new HashSet<>(exclude);
+    Entry entry = entries.get(key);
+    long age = entry == null ? 0 : System.currentTimeMillis() - entry.fetchedAt;
+    if (entry != null && age < maxStaleMillis) {
+      List<Pair<String, Double>> result = entry.top(k, excludeSet);
+      if (result != null) {
+        if (age >= freshMillis && entry.refreshing.compareAndSet(false, true)) {
+          return refresh(listKey, key, entry, k, excludeSet, loader, result);
+        }
+        return result;
+      }
+    }
+    return load(listKey, key, k, excludeSet, loader).top(k, excludeSet);
+  }
+
+  /**
+   * Drops the cached recommendations of a user's list in every mode.
+   *
+   * @param userID String containing the user's unique ID
+   * @param stemmedListName Stemmed name of the list
+   */
+  public void invalidate(String userID, String stemmedListName) {
+    String listKey = listKey(userID, stemmedListName);
+    listVersions.put(listKey, version.incrementAndGet());
+    if (listVersions.size() > MAX_ENTRIES) {
+      clear();
+    }
+    entries.remove(listKey + "\n" + RecommendationsClient.PAST_RECOMMENDATIONS);
+    entries.remove(listKey + "\n" + RecommendationsClient.USER_RECOMMENDATIONS);
+  }
+
+  /**
+   * Reloads a stale entry, or returns its stale result if the recommendations API cannot be
+   * reached.
+   */
+  private List<Pair<String, Double>> refresh(
+      String listKey,
+      String key,
+      Entry entry,
+      int k,
+      Set<String> exclude,
+      Loader loader,
+      List<Pair<String, Double>> staleResult) {
+    try {
+      return load(listKey, key, k, exclude, loader).top(k, exclude);
+    } catch (RuntimeException e) {
+      log.error("Could not refresh recommendations: " + e);
+      return staleResult;
+    } finally {
+      entry.refreshing.set(false);
+    }
+  }
+
+  /**
+   * Fetches recommendations with a few extra items and caches them unless the list was updated
+   * while they were fetched.
+   */
+  private Entry load(String listKey, String key, int k, Set<String> exclude, Loader loader) {
+    if (entries.size() >= MAX_ENTRIES) {
+      clear();
+    }
+    long startVersion = version.get();
+    int fetchK = k + EXTRA_ITEMS;
+    long fetchedAt = System.currentTimeMillis();
+    List<Pair<String, Double>> items = loader.load(fetchK, new ArrayList<>(exclude));
+    Entry entry = new Entry(items, exclude, fetchK, fetchedAt);
+    entries.put(key, entry);
+    if (updatedSince(listKey, startVersion)) {
+      entries.remove(key, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Returns true if the list may have been updated after the given version, including when the
+   * versions of lists were dropped since then.
+   */
+  private boolean updatedSince(String listKey, long startVersion) {
+    Long listVersion = listVersions.get(listKey);
+    return clearedVersion > startVersion || (listVersion != null && listVersion > startVersion);
+  }
+
+  /** Drops every cached result and list version. */
+  private void clear() {
+    clearedVersion = version.incrementAndGet();
+    entries.clear();
+    listVersions.clear();
+  }
+
+  /** Returns the number of lists whose version is kept, for testing. */
+  int listVersionCount() {
+    return listVersions.size();
+  }
+
+  private static String listKey(String userID, String stemmedListName) {
+    return userID + "\n" + stemmedListName;
+  }
+}
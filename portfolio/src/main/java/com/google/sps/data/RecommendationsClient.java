@@ -17,27 +17,103 @@
 package com.google.sps.data;
 
 import com.google.appengine.api.log.InvalidRequestException;
+import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.gson.Gson;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
 
 public class RecommendationsClient {
 
   private static Logger log = LoggerFactory.getLogger(RecommendationsClient.class);
   private String userID;
   private static final String BASE_URL = "https://arliu-step-2020-3.wl.r.appspot.com/";
+  private static final int CONNECT_TIMEOUT_MILLIS =
+      Integer.getInteger("recommendations.connectTimeoutMillis", 2000);
+  private static final int READ_TIMEOUT_MILLIS =
+      Integer.getInteger("recommendations.readTimeoutMillis", 10000);
+  private static final int MAX_CONNECTIONS =
+      Integer.getInteger("recommendations.maxConnections", 20);
+  private static final long KEEP_ALIVE_MILLIS = 30000;
+  private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+  private static final long RECOMMENDATIONS_FRESH_MILLIS = 30000;
+  private static final long RECOMMENDATIONS_MAX_STALE_MILLIS = 600000;
+  private static final RestTemplate restTemplate = createRestTemplate();
+  private static final RecommendationCache recommendationCache =
+      new RecommendationCache(RECOMMENDATIONS_FRESH_MILLIS, RECOMMENDATIONS_MAX_STALE_MILLIS);
+  private static final ListUpdateQueue listUpdates =
+      new ListUpdateQueue(
+          QueueFactory.getQueue(ListUpdateQueue.QUEUE_NAME), RecommendationsClient::sendListUpdate);
+  public static final String PAST_RECOMMENDATIONS = "past";
+  public static final String USER_RECOMMENDATIONS = "general";
+
+  /**
+   * Returns the RestTemplate shared by all calls to the recommendations API. Its connections are
+   * pooled and kept alive so that calls reuse TCP and TLS connections. Connect and read timeouts
+   * and the pool size are set by the recommendations.connectTimeoutMillis,
+   * recommendations.readTimeoutMillis and recommendations.maxConnections system properties.
+   *
+   * @return Shared RestTemplate for the recommendations API
+   */
+  public static RestTemplate getRestTemplate() {
+    return restTemplate;
+  }
+
+  private static RestTemplate createRestTemplate() {
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+    connectionManager.setMaxTotal(MAX_CONNECTIONS);
+    connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+    connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+    RequestConfig requestConfig =
+        RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+            .setConnectionRequestTimeout(CONNECT_TIMEOUT_MILLIS)
+            .setSocketTimeout(READ_TIMEOUT_MILLIS)
+            .build();
+    CloseableHttpClient httpClient =
+        HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(
+                (response, context) -> {
+                  long keepAlive =
+                      DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(
+                          response, context);
+                  return keepAlive > 0
+                      ? Math.min(keepAlive, KEEP_ALIVE_MILLIS)
+                      : KEEP_ALIVE_MILLIS;
+                })
+            .build();
+    return new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+  }
+
+  /**
+   * Returns the queue of list updates sent to the recommendations API in the background.
+   *
+   * @return Shared ListUpdateQueue
+   */
+  public static ListUpdateQueue getListUpdates() {
+    return listUpdates;
+  }
 
   /**
    * Sets the userID for the recommendations client instance.
@@ -49,8 +125,10 @@ public class RecommendationsClient {
   }
 
   /**
-   * Starts a backend thread to call recommendations API to store newly added list item into
-   * recommendations database.
+   * Calls the recommendations API to store newly added list items into the recommendations
+   * database, through the shared ListUpdateQueue. Updates that start a new list are sent before
+   * this method returns, and other updates are sent in the background. The cached recommendations
+   * of the list are dropped on this instance, which is the one that changed the list.
    *
    * @param stemmedListName The stemmed name of the list to store aggregation information for.
    * @param items List of strings containing items to add to list
@@ -59,34 +137,29 @@ public class RecommendationsClient {
    *     liked by user (false)
    */
   public void saveAggregateListData(
-      String stemmedListName, List<String> items, boolean newList, boolean positiveFeedback)
-      throws InvalidRequestException {
-    log.info("making storeInfo api request");
-    ExecutorService executor = Executors.newSingleThreadExecutor();
-    executor.submit(
-        new Runnable() {
-          @Override
-          public void run() {
-            callRecommendationsAPI(stemmedListName, items, newList, positiveFeedback);
-          }
-        });
-
-    log.info("started api request");
+      String stemmedListName, List<String> items, boolean newList, boolean positiveFeedback) {
+    recommendationCache.invalidate(userID, stemmedListName);
+    listUpdates.submit(userID, stemmedListName, items, newList, positiveFeedback);
   }
 
   /**
    * Creates an API call to the recommender API and sends list item data to be stored. Assumes that
    * list of items is not empty.
    *
+   * @param userID String containing the user's unique ID
    * @param stemmedListName Stemmed name of the list
    * @param items List of strings containing items to add to list
    * @param newList Indicates whether this is the beginning of a list for count purposes
    * @param positiveFeedback Boolean indicating whether user is adding elements or responding
    *     negatively to recommendations
    */
-  private void callRecommendationsAPI(
-      String stemmedListName, List<String> items, boolean newList, boolean positiveFeedback) {
-    RestTemplate restTemplate = new RestTemplate();
+  private static void sendListUpdate(
+      String userID,
+      String stemmedListName,
+      List<String> items,
+      boolean newList,
+      boolean positiveFeedback)
+      throws InvalidRequestException {
     String urlString =
         BASE_URL
             + "storeInfo?userID="
@@ -131,6 +204,62 @@ public class RecommendationsClient {
     return callRecommendationsAPI("generalUserRecs", userID, stemmedListName);
   }
 
+  /**
+   * Retrieves up to k recommendations for a user based on their own list history. Results are
+   * cached by the shared RecommendationCache.
+   *
+   * @param stemmedListName Stemmed name of the list we are providing recommendations for.
+   * @param k Maximum number of recommendations to retrieve
+   * @return List of up to k pairs of items and their corresponding user preference frequency, in
+   *     descending order of frequency
+   */
+  public List<Pair<String, Double>> getTopPastRecommendations(String stemmedListName, int k)
+      throws URISyntaxException {
+    String userID = this.userID;
+    return recommendationCache.get(
+        userID,
+        stemmedListName,
+        PAST_RECOMMENDATIONS,
+        k,
+        Collections.emptyList(),
+        (fetchK, exclude) ->
+            callRecommendationsAPI(
+                UriComponentsBuilder.fromHttpUrl(BASE_URL + "topPastUserRecs")
+                    .queryParam("userID", userID)
+                    .queryParam("stemmedListName", stemmedListName)
+                    .queryParam("k", fetchK)));
+  }
+
+  /**
+   * Retrieves up to k recommendations for a user based on other similar user history, skipping the
+   * excluded items on the recommendations server. Results are cached by the shared
+   * RecommendationCache.
+   *
+   * @param stemmedListName Stemmed name of the list we are providing recommendations for.
+   * @param k Maximum number of recommendations to retrieve
+   * @param stemmedExcludedItems List of stemmed items that should not be recommended
+   * @return List of up to k pairs of items and their corresponding user preference frequency, in
+   *     descending order of frequency
+   */
+  public List<Pair<String, Double>> getTopUserRecommendations(
+      String stemmedListName, int k, List<String> stemmedExcludedItems)
+      throws URISyntaxException {
+    String userID = this.userID;
+    return recommendationCache.get(
+        userID,
+        stemmedListName,
+        USER_RECOMMENDATIONS,
+        k,
+        stemmedExcludedItems,
+        (fetchK, exclude) ->
+            callRecommendationsAPI(
+                UriComponentsBuilder.fromHttpUrl(BASE_URL + "topGeneralUserRecs")
+                    .queryParam("userID", userID)
+                    .queryParam("stemmedListName", stemmedListName)
+                    .queryParam("k", fetchK)
+                    .queryParam("exclude", exclude.toArray())));
+  }
+
   /**
    * Calls recommendations API to get any possible list item recommendations for the user. Throws
    * URISyntaxException if there is an error in URI creation. Otherwise, if no item suggestions
@@ -144,16 +273,38 @@ public class RecommendationsClient {
    */
   private List<Pair<String, Double>> callRecommendationsAPI(
       String methodName, String userID, String stemmedListName) throws URISyntaxException {
-    log.info("making pastUserRecs api request");
-    RestTemplate restTemplate = new RestTemplate();
     String urlString =
         BASE_URL + methodName + "?userID=" + userID + "&stemmedListName=" + stemmedListName;
-    URI uri = new URI(urlString);
+    return callRecommendationsAPI(new URI(urlString));
+  }
+
+  /**
+   * Calls recommendations API to get list item recommendations for the user from the URI built by
+   * the given builder, encoding its query parameters.
+   *
+   * @param uriBuilder Builder of the URI of the recommendations API method
+   * @return List of pairs containing items and their corresponding user preference frequency as a
+   *     double value
+   */
+  private List<Pair<String, Double>> callRecommendationsAPI(UriComponentsBuilder uriBuilder) {
+    return callRecommendationsAPI(uriBuilder.build().encode().toUri());
+  }
+
+  /**
+   * Calls the recommendations API method at the given URI and converts the returned items into
+   * pairs.
+   *
+   * @param uri URI of the recommendations API method, including its query parameters
+   * @return List of pairs containing items and their corresponding user preference frequency as a
+   *     double value
+   */
+  private List<Pair<String, Double>> callRecommendationsAPI(URI uri) {
+    log.info("making " + uri.getPath() + " api request");
     ResponseEntity<List> result = restTemplate.getForEntity(uri, List.class);
     if (result.getStatusCode() != HttpStatus.OK) {
       throw new InvalidRequestException("Error sending info to recommendations API.");
     }
-    log.info("pastUserRecs success");
+    log.info(uri.getPath() + " success");
     List<LinkedHashMap<String, Double>> resultList = result.getBody();
     Gson gson = new Gson();
     List<Pair<String, Double>> formattedList =
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.servlets;
+
+import com.google.sps.data.ListUpdateQueue;
+import com.google.sps.data.RecommendationsClient;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This servlet handles list update tasks of the ListUpdateQueue by sending them to the
+ * recommendations API. It only accepts requests from the task queue.
+ */
+@WebServlet(ListUpdateQueue.HANDLER_PATH)
+public class ListUpdateServlet extends HttpServlet {
+
+  /**
+   * POST method to send a queued list update. Responds with an error status for updates that
+   * should be retried by the task queue.
+   *
+   * @param request HTTP request from the task queue
+   * @param response Writer to return http response to input request
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    String[] items = request.getParameterValues(ListUpdateQueue.ITEM_PARAM);
+    List<String> itemList = items == null ? Collections.emptyList() : Arrays.asList(items);
+    boolean delivered =
+        RecommendationsClient.getListUpdates()
+            .deliver(
+                request.getParameter(ListUpdateQueue.USER_ID_PARAM),
+                request.getParameter(ListUpdateQueue.LIST_NAME_PARAM),
+                itemList,
+                Boolean.parseBoolean(request.getParameter(ListUpdateQueue.NEW_LIST_PARAM)),
+                Boolean.parseBoolean(
+                    request.getParameter(ListUpdateQueue.POSITIVE_FEEDBACK_PARAM)));
+    if (!delivered) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.utils;
+
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tokenizer for list utterances such as "apples, bananas, and ice cream". All patterns are compiled
+ * once and items are extracted with a scanner over the input rather than with regex splits.
+ */
+public class ListTokenizer {
+
+  private static final String CONJUNCTION = "and";
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  private static final Pattern RECOMMENDATION =
+      Pattern.compile("(would you like to add|might be interested in adding) (.*?)(\\?| to)");
+
+  /**
+   * Extracts each item in a string of items. Items are separated by commas, and the last
+   * comma-separated segment is further separated by "and" (so "mac and cheese, bread" keeps "mac
+   * and cheese" as one item while "bread and milk" is two items).
+   *
+   * @param allItemsString String containing a grammatical list of items.
+   * @return List of strings where each element is an item
+   */
+  public static ArrayList<String> unpackObjects(String allItemsString) {
+    ArrayList<String> items = new ArrayList<>();
+    int length = allItemsString.length();
+    int segmentStart = 0;
+    for (int i = 0; i < length; i++) {
+      if (allItemsString.charAt(i) == ',') {
+        addItem(items, allItemsString, skipConjunction(allItemsString, segmentStart, i), i);
+        segmentStart = i + 1;
+      }
+    }
+    int itemStart = skipConjunction(allItemsString, segmentStart, length);
+    for (int i = itemStart; i < length; i++) {
+      if (isConjunctionAt(allItemsString, i, length)) {
+        addItem(items, allItemsString, itemStart, i);
+        itemStart = skipWhitespace(allItemsString, i + CONJUNCTION.length() + 1, length);
+        i = itemStart - 1;
+      }
+    }
+    addItem(items, allItemsString, itemStart, length);
+    return items;
+  }
+
+  /**
+   * Splits a string into words separated by whitespace.
+   *
+   * @param words String to be split
+   * @return Array of words in the string
+   */
+  public static String[] splitWords(String words) {
+    return WHITESPACE.split(words);
+  }
+
+  /**
+   * Extracts the recommended items from an assistant comment that offered recommendations.
+   *
+   * @param comment Assistant comment to extract the recommended items from
+   * @return List of recommended items or null if the comment was not a recommendation
+   */
+  public static ArrayList<String> getRecommendedItems(String comment) {
+    Matcher matcher = RECOMMENDATION.matcher(comment);
+    if (matcher.find()) {
+      return unpackObjects(matcher.group(2));
+    }
+    return null;
+  }
+
+  /**
+   * Returns the index of the first character after any leading whitespace and a leading "and" in
+   * the range [start, end).
+   */
+  private static int skipConjunction(String s, int start, int end) {
+    start = skipWhitespace(s, start, end);
+    if (start > 0 && isConjunctionAt(s, start - 1, end)) {
+      start = skipWhitespace(s, start + CONJUNCTION.length(), end);
+    }
+    return start;
+  }
+
+  /** Returns the index of the first non-whitespace character in the range [start, end). */
+  private static int skipWhitespace(String s, int start, int end) {
+    while (start < end && Character.isWhitespace(s.charAt(start))) {
+      start++;
+    }
+    return start;
+  }
+
+  /** Returns true if the whitespace at index i is followed by "and" and then more whitespace. */
+  private static boolean isConjunctionAt(String s, int i, int end) {
+    int afterConjunction = i + CONJUNCTION.length() + 1;
+    return afterConjunction < end
+        && Character.isWhitespace(s.charAt(i))
+        && s.startsWith(CONJUNCTION, i + 1)
+        && Character.isWhitespace(s.charAt(afterConjunction));
+  }
+
+  /** Adds the trimmed substring [start, end) of s to items if it is not empty. */
+  private static void addItem(ArrayList<String> items, String s, int start, int end) {
+    while (end > start && Character.isWhitespace(s.charAt(end - 1))) {
+      end--;
+    }
+    if (end > start) {
+      items.add(s.substring(start, end));
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.utils;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang3.SerializationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-user read-through cache for the memory data that is re-read on every turn of a list-building
+ * conversation: the user's current lists, their most recent assistant comment and the results of
+ * past list queries. Entries are kept in App Engine memcache, or in an in-process store for tests.
+ *
+ * <p>MemoryUtils writes through this cache whenever it stores lists or comments. Cached past list
+ * queries are keyed by a per-user list version that is bumped on every list write, so stale query
+ * results are never read again. Versions start at a random value whenever the version counter is
+ * missing, so that a counter evicted from memcache does not restart at a value used before.
+ */
+public class MemoryCache {
+
+  private static Logger log = LoggerFactory.getLogger(MemoryCache.class);
+  private static final String NAMESPACE = "memory";
+  private static final String CURRENT_LIST_PREFIX = "list:";
+  private static final String LAST_COMMENT_PREFIX = "comment:";
+  private static final String LIST_VERSION_PREFIX = "listVersion:";
+  private static final String PAST_LISTS_PREFIX = "pastLists:";
+  private static final Random random = new Random();
+
+  /** Minimal key-value store interface backing the cache. */
+  interface Store {
+    Object get(String key);
+
+    void put(String key, Object value);
+
+    void delete(String key);
+
+    /** Stores the value only if the key is not present. */
+    void add(String key, Object value);
+
+    /** Increments the value of the key, starting it at initialValue if the key is not present. */
+    long increment(String key, long initialValue);
+  }
+
+  private static Store store = new MemcacheStore();
+
+  /**
+   * Replaces the memcache backing store with an empty in-process store. Should only be called for
+   * testing purposes.
+   */
+  public static void useInProcessStore() {
+    store = new InProcessStore();
+  }
+
+  /**
+   * Returns the cached current list of the given user and stemmed list name.
+   *
+   * @param userID String containing current user's unique ID
+   * @param stemmedListName stemmed name of the list
+   * @return Cached List entity or null if it is not cached
+   */
+  public static Entity getCurrentList(String userID, String stemmedListName) {
+    return (Entity) get(currentListKey(userID, stemmedListName));
+  }
+
+  /**
+   * Writes the user's current list through to the cache and invalidates their past list queries.
+   *
+   * @param userID String containing current user's unique ID
+   * @param stemmedListName stemmed name of the list
+   * @param entity List entity that was just stored in datastore
+   */
+  public static void putCurrentList(String userID, String stemmedListName, Entity entity) {
+    cacheCurrentList(userID, stemmedListName, entity);
+    invalidatePastLists(userID);
+  }
+
+  /**
+   * Caches the user's current list after it was read from datastore.
+   *
+   * @param userID String containing current user's unique ID
+   * @param stemmedListName stemmed name of the list
+   * @param entity List entity read from datastore
+   */
+  public static void cacheCurrentList(String userID, String stemmedListName, Entity entity) {
+    put(currentListKey(userID, stemmedListName), entity);
+  }
+
+  /**
+   * Returns the cached most recent valid assistant comment of the given user.
+   *
+   * @param userID String containing current user's unique ID
+   * @return Cached CommentHistory entity or null if it is not cached
+   */
+  public static Entity getLastAssistantComment(String userID) {
+    return (Entity) get(LAST_COMMENT_PREFIX + userID);
+  }
+
+  /**
+   * Caches the most recent valid assistant comment of the given user after it was read from
+   * datastore.
+   *
+   * @param userID String containing current user's unique ID
+   * @param comment CommentHistory entity of the last valid assistant turn
+   */
+  public static void cacheLastAssistantComment(String userID, Entity comment) {
+    put(LAST_COMMENT_PREFIX + userID, comment);
+  }
+
+  /**
+   * Writes a newly stored valid assistant comment through to the cache. If no comment is cached or
+   * the cached comment is newer than the stored one, the cached entry is dropped instead, since the
+   * cache cannot tell which comment is the most recent.
+   *
+   * @param userID String containing current user's unique ID
+   * @param comment CommentHistory entity that was just stored in datastore
+   */
+  public static void updateLastAssistantComment(String userID, Entity comment) {
+    Entity cached = getLastAssistantComment(userID);
+    if (cached != null
+        && (long) cached.getProperty("timestamp") <= (long) comment.getProperty("timestamp")) {
+      cacheLastAssistantComment(userID, comment);
+    } else {
+      delete(LAST_COMMENT_PREFIX + userID);
+    }
+  }
+
+  /**
+   * Returns the cache key of a past list query under the user's current list version. The key
+   * should be computed before running the query so that a result racing with a list write is cached
+   * under the old version.
+   *
+   * @param userID String containing current user's unique ID
+   * @param query String uniquely describing the query constraints
+   * @return Cache key of the query result, or null if the list version cannot be read
+   */
+  public static String getPastListsKey(String userID, String query) {
+    String versionKey = LIST_VERSION_PREFIX + userID;
+    Object version = get(versionKey);
+    if (version == null) {
+      try {
+        store.add(versionKey, randomVersion());
+      } catch (RuntimeException e) {
+        log.error("Memory cache write failed for " + versionKey, e);
+      }
+      version = get(versionKey);
+    }
+    return version == null ? null : PAST_LISTS_PREFIX + userID + ":" + version + ":" + query;
+  }
+
+  /**
+   * Returns the cached result of a past list query.
+   *
+   * @param pastListsKey Cache key returned by getPastListsKey
+   * @return Cached List entities or null if the query result is not cached
+   */
+  @SuppressWarnings("unchecked")
+  public static List<Entity> getPastLists(String pastListsKey) {
+    return pastListsKey == null ? null : (List<Entity>) get(pastListsKey);
+  }
+
+  /**
+   * Caches the result of a past list query.
+   *
+   * @param pastListsKey Cache key returned by getPastListsKey
+   * @param pastLists List entities returned by the query
+   */
+  public static void putPastLists(String pastListsKey, List<Entity> pastLists) {
+    if (pastListsKey != null) {
+      put(pastListsKey, new ArrayList<>(pastLists));
+    }
+  }
+
+  /**
+   * Invalidates all cached past list queries of the given user.
+   *
+   * @param userID String containing current user's unique ID
+   */
+  public static void invalidatePastLists(String userID) {
+    try {
+      store.increment(LIST_VERSION_PREFIX + userID, randomVersion());
+    } catch (RuntimeException e) {
+      log.error("Failed to invalidate past lists for user " + userID, e);
+    }
+  }
+
+  /**
+   * Drops the list version counter of the given user, as memcache may evict it. Should only be
+   * called for testing purposes.
+   *
+   * @param userID String containing current user's unique ID
+   */
+  static void evictListVersion(String userID) {
+    delete(LIST_VERSION_PREFIX + userID);
+  }
+
+  /** Returns a random non-negative list version to start a missing version counter at. */
+  private static long randomVersion() {
+    return random.nextLong() & Long.MAX_VALUE;
+  }
+
+  private static String currentListKey(String userID, String stemmedListName) {
+    return CURRENT_LIST_PREFIX + MemoryUtils.getCurrentListKey(userID, stemmedListName).getName();
+  }
+
+  /** Reads from the store, treating store failures as cache misses. */
+  private static Object get(String key) {
+    try {
+      return store.get(key);
+    } catch (RuntimeException e) {
+      log.error("Memory cache read failed for " + key, e);
+      return null;
+    }
+  }
+
+  /** Writes to the store, ignoring store failures so that datastore stays the source of truth. */
+  private static void put(String key, Object value) {
+    try {
+      store.put(key, value);
+    } catch (RuntimeException e) {
+      log.error("Memory cache write failed for " + key, e);
+    }
+  }
+
+  private static void delete(String key) {
+    try {
+      store.delete(key);
+    } catch (RuntimeException e) {
+      log.error("Memory cache delete failed for " + key, e);
+    }
+  }
+
+  /** Store backed by App Engine memcache. */
+  private static class MemcacheStore implements Store {
+    private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+    @Override
+    public Object get(String key) {
+      return memcache.get(key);
+    }
+
+    @Override
+    public void put(String key, Object value) {
+      memcache.put(key, value);
+    }
+
+    @Override
+    public void delete(String key) {
+      memcache.delete(key);
+    }
+
+    @Override
+    public void add(String key, Object value) {
+      memcache.put(key, value, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+
+    @Override
+    public long increment(String key, long initialValue) {
+      return memcache.increment(key, 1L, initialValue);
+    }
+  }
+
+  /**
+   * In-process stand-in for memcache. Values are stored serialized, as memcache does, so callers
+   * never share mutable entities with the cache.
+   */
+  private static class InProcessStore implements Store {
+    private final Map<String, Object> values = new ConcurrentHashMap<>();
+
+    @Override
+    public Object get(String key) {
+      Object value = values.get(key);
+      return value instanceof byte[] ? SerializationUtils.deserialize((byte[]) value) : value;
+    }
+
+    @Override
+    public void put(String key, Object value) {
+      values.put(key, SerializationUtils.serialize((Serializable) value));
+    }
+
+    @Override
+    public void delete(String key) {
+      values.remove(key);
+    }
+
+    @Override
+    public void add(String key, Object value) {
+      values.putIfAbsent(key, SerializationUtils.serialize((Serializable) value));
+    }
+
+    @Override
+    public long increment(String key, long initialValue) {
+      Object value =
+          values.compute(
+              key,
+              (k, oldValue) ->
+                  SerializationUtils.serialize(
+                      oldValue == null
+                          ? initialValue + 1L
+                          : (long) SerializationUtils.deserialize((byte[]) oldValue) + 1L));
+      return SerializationUtils.deserialize((byte[]) value);
+    }
+  }
+}
@@ -20,6 +20,8 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilter;
 import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
@@ -44,11 +46,11 @@ import java.net.URI;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,6 +66,7 @@ public class MemoryUtils {
   private static Logger log = LoggerFactory.getLogger(MemoryUtils.class);
   public static final List<String> AGG_ENTITY_ID_PROPERTIES =
       Arrays.asList("userID", "timestamp", "count", "listName");
+  private static final String CURRENT_LIST_KEY_SEPARATOR = "-";
 
   /**
    * Saves comment information into comment history database if the user is logged in.
@@ -113,6 +116,9 @@ public class MemoryUtils {
     entity.setProperty("errorResponse", !isUser && comment.equals(AgentUtils.DEFAULT_FALLBACK));
     entity.setProperty("timestamp", timeMillis);
     datastore.put(entity);
+    if (!isUser && !(boolean) entity.getProperty("errorResponse")) {
+      MemoryCache.updateLastAssistantComment(userID, entity);
+    }
     log.info(new Gson().toJson(entity));
   }
 
@@ -246,17 +252,42 @@ public class MemoryUtils {
    */
   public static List<Entity> getPastUserLists(
       DatastoreService datastore, String userID, Map<String, Value> parameters) {
+    int maxLists = -1;
+    if (!parameters.get("number").getStringValue().equals("-1")) {
+      maxLists = (int) parameters.get("number").getNumberValue();
+    }
+    return getPastUserLists(datastore, userID, parameters, maxLists);
+  }
+
+  /**
+   * Retrieves up to maxLists past lists of the given user according to the input parameters, most
+   * recent first. The limit is applied by datastore so only the returned lists are read, and the
+   * result is cached until the user's lists next change.
+   *
+   * @param datastore Datastore instance to used to retrieve past lists
+   * @param userID String containing current user's unique ID
+   * @param parameters Map containing the detected entities in the user's intent.
+   * @param maxLists Maximum number of lists to retrieve, or -1 to retrieve all matching lists.
+   * @return List of List-entities matching the user's input parameters
+   */
+  public static List<Entity> getPastUserLists(
+      DatastoreService datastore, String userID, Map<String, Value> parameters, int maxLists) {
+    FetchOptions fetchOptions =
+        maxLists < 0
+            ? FetchOptions.Builder.withDefaults()
+            : FetchOptions.Builder.withLimit(maxLists);
     Filter filter = makeFilters(parameters, userID, true);
-    List<Entity> listQuery = pastListHelper(datastore, filter);
-    if (listQuery.size() == 0) {
-      filter = makeFilters(parameters, userID, false);
-      listQuery = pastListHelper(datastore, filter);
+    String cacheKey = MemoryCache.getPastListsKey(userID, filter + ":" + maxLists);
+    List<Entity> listQuery = MemoryCache.getPastLists(cacheKey);
+    if (listQuery != null) {
+      return listQuery;
     }
-    String maxValue = parameters.get("number").getStringValue();
-    if (!maxValue.equals("-1")) {
-      return listQuery.subList(
-          0, Math.min(listQuery.size(), (int) parameters.get("number").getNumberValue()));
+    listQuery = pastListHelper(datastore, filter, fetchOptions);
+    if (listQuery.isEmpty() && maxLists != 0) {
+      filter = makeFilters(parameters, userID, false);
+      listQuery = pastListHelper(datastore, filter, fetchOptions);
     }
+    MemoryCache.putPastLists(cacheKey, listQuery);
     log.info("past list query: " + listQuery);
     return listQuery;
   }
@@ -303,21 +334,23 @@ public class MemoryUtils {
   }
 
   /**
-   * Helper method that implements a simple query for all list items matching the filter
-   * constraints.
+   * Helper method that implements a simple query for list items matching the filter constraints.
    *
    * @param datastore Datastore instance to used to retrieve past lists
+   * @param filter Filter for valid list entities
+   * @param fetchOptions Fetch options containing the maximum number of lists to retrieve
    */
-  private static List<Entity> pastListHelper(DatastoreService datastore, Filter filter) {
+  private static List<Entity> pastListHelper(
+      DatastoreService datastore, Filter filter, FetchOptions fetchOptions) {
     Query query =
         new Query("List").setFilter(filter).addSort("timestamp", SortDirection.DESCENDING);
-    return datastore.prepare(query).asList(FetchOptions.Builder.withDefaults());
+    return datastore.prepare(query).asList(fetchOptions);
   }
 
   /**
    * Creates an entity object for the new list if non exists. If a list already exists of the same
    * name, change the previous list to be named "<list> (timestamp)" to differentiate archived
-   * lists.
+   * lists. The archived list and the new current list are written in a single batched put.
    *
    * @param listName The name of the list being created.
    * @param userID String containing current user's unique ID
@@ -332,27 +365,52 @@ public class MemoryUtils {
       ArrayList<String> items,
       RecommendationsClient recommender) {
     String stemmedListName = StemUtils.stemmed(listName);
-    List<Entity> existingList = fetchExistingListQuery(datastore, userID, stemmedListName);
-    if (!existingList.isEmpty()) {
-      Entity existingEntity = existingList.get(0);
-      long timestamp = (long) existingEntity.getProperty("timestamp");
-      try {
-        String timeString = TimeUtils.secondsToDateString(timestamp);
-        existingEntity.setProperty(
-            "listName",
-            ((String) existingEntity.getProperty("listName")) + " (" + timeString + ")");
-      } catch (ParseException e) {
-        existingEntity.setProperty(
-            "listName",
-            ((String) existingEntity.getProperty("listName"))
-                + " ("
-                + String.valueOf(timestamp)
-                + ")");
-      }
-      datastore.put(existingEntity);
-      log.info(new Gson().toJson(existingEntity));
+    Entity existingEntity = fetchCurrentList(datastore, userID, stemmedListName);
+    Entity newEntity =
+        createListEntity(userID, items, listName, stemmedListName, System.currentTimeMillis());
+    if (existingEntity == null) {
+      datastore.put(newEntity);
+    } else {
+      Entity archivedEntity = archiveList(existingEntity);
+      datastore.put(Arrays.asList(archivedEntity, newEntity));
+      log.info(new Gson().toJson(archivedEntity));
+    }
+    MemoryCache.putCurrentList(userID, stemmedListName, newEntity);
+    log.info(new Gson().toJson(newEntity));
+    if (items != null && items.size() > 0) {
+      recommender.saveAggregateListData(stemmedListName, items, true, true);
+    }
+  }
+
+  /**
+   * Creates the archived copy of a list that is being replaced by a new list of the same name. The
+   * archived list is renamed to "<list> (timestamp)" and given an auto-allocated key so that it no
+   * longer occupies the current list key. Lists stored before current list keys existed are
+   * archived in place.
+   *
+   * @param existingEntity The user's current list entity.
+   * @return List entity containing the archived list.
+   */
+  private static Entity archiveList(Entity existingEntity) {
+    Entity archivedEntity = existingEntity;
+    if (isCurrentListKey(existingEntity.getKey())) {
+      archivedEntity = new Entity("List");
+      archivedEntity.setPropertiesFrom(existingEntity);
+    }
+    long timestamp = (long) existingEntity.getProperty("timestamp");
+    try {
+      String timeString = TimeUtils.secondsToDateString(timestamp);
+      archivedEntity.setProperty(
+          "listName", ((String) existingEntity.getProperty("listName")) + " (" + timeString + ")");
+    } catch (ParseException e) {
+      archivedEntity.setProperty(
+          "listName",
+          ((String) existingEntity.getProperty("listName"))
+              + " ("
+              + String.valueOf(timestamp)
+              + ")");
     }
-    addListItems(datastore, userID, items, listName, recommender);
+    return archivedEntity;
   }
 
   /**
@@ -374,22 +432,32 @@ public class MemoryUtils {
       RecommendationsClient recommender)
       throws InvalidRequestException {
     String stemmedListName = StemUtils.stemmed(listName);
-    List<Entity> existingList = fetchExistingListQuery(datastore, userID, stemmedListName);
-    if (existingList.isEmpty()) {
+    Entity existingEntity = fetchCurrentList(datastore, userID, stemmedListName);
+    if (existingEntity == null) {
       addListItems(datastore, userID, items, listName, recommender);
       return false;
     }
-    Entity existingEntity = existingList.get(0);
-    ArrayList<String> existingItems = (ArrayList<String>) existingEntity.getProperty("items");
+    List<String> existingItems = (List<String>) existingEntity.getProperty("items");
     if (existingItems != null) {
       recommender.saveAggregateListData(stemmedListName, items, false, true);
-      existingItems.addAll(items);
-      existingEntity.setProperty("items", existingItems);
+      List<String> updatedItems = new ArrayList<>(existingItems);
+      updatedItems.addAll(items);
+      existingEntity.setProperty("items", updatedItems);
     } else {
       existingEntity.setProperty("items", items);
       recommender.saveAggregateListData(stemmedListName, items, true, true);
     }
-    datastore.put(existingEntity);
+    if (isCurrentListKey(existingEntity.getKey())) {
+      datastore.put(existingEntity);
+    } else {
+      // Move lists created before current list keys existed onto the current list key.
+      Entity migratedEntity = new Entity(getCurrentListKey(userID, stemmedListName));
+      migratedEntity.setPropertiesFrom(existingEntity);
+      datastore.put(migratedEntity);
+      datastore.delete(existingEntity.getKey());
+      existingEntity = migratedEntity;
+    }
+    MemoryCache.putCurrentList(userID, stemmedListName, existingEntity);
     log.info(new Gson().toJson(existingEntity));
     return true;
   }
@@ -410,14 +478,32 @@ public class MemoryUtils {
       List<String> items,
       String listName,
       long timestamp) {
-    Entity entity = new Entity("List");
+    String stemmedListName = StemUtils.stemmed(listName);
+    Entity entity = createListEntity(userID, items, listName, stemmedListName, timestamp);
+    datastore.put(entity);
+    MemoryCache.putCurrentList(userID, stemmedListName, entity);
+    log.info(new Gson().toJson(entity));
+  }
+
+  /**
+   * Creates a List entity stored under the current list key of the given user and list name.
+   *
+   * @param userID String containing current user's unique ID
+   * @param items List of strings containing items to add to list
+   * @param listName The name of the list being created.
+   * @param stemmedListName Stemmed name of the list being created.
+   * @param timestamp Timestamp to assign to the list.
+   * @return List entity that has not yet been stored.
+   */
+  private static Entity createListEntity(
+      String userID, List<String> items, String listName, String stemmedListName, long timestamp) {
+    Entity entity = new Entity(getCurrentListKey(userID, stemmedListName));
     entity.setProperty("listName", listName);
-    entity.setProperty("stemmedListName", StemUtils.stemmed(listName));
+    entity.setProperty("stemmedListName", stemmedListName);
     entity.setProperty("userID", userID);
     entity.setProperty("timestamp", timestamp);
     entity.setProperty("items", items);
-    datastore.put(entity);
-    log.info(new Gson().toJson(entity));
+    return entity;
   }
 
   /**
@@ -443,26 +529,55 @@ public class MemoryUtils {
   }
 
   /**
-   * Fetches all lists created by the current user with the given stemmed List name. List is
-   * returned with the most recently created first.
+   * Returns the key under which the user's current list of the given stemmed name is stored. Only
+   * the most recent list of a name lives under this key; archived lists have auto-allocated keys.
+   *
+   * @param userID String containing current user's unique ID
+   * @param stemmedListName stemmed name of the list
+   * @return Key of the current List entity
+   */
+  public static Key getCurrentListKey(String userID, String stemmedListName) {
+    return KeyFactory.createKey("List", userID + CURRENT_LIST_KEY_SEPARATOR + stemmedListName);
+  }
+
+  /** Returns true if the key is a current list key rather than an archived list key. */
+  private static boolean isCurrentListKey(Key key) {
+    return key.getName() != null;
+  }
+
+  /**
+   * Fetches the current list created by the current user with the given stemmed list name from the
+   * memory cache, or else using a direct key lookup. Lists stored before current list keys were
+   * introduced are found with a single-result query instead.
    *
    * @param datastore Datastore instance to used to retrieve past lists
    * @param userID String containing current user's unique ID
    * @param stemmedListName stemmed name of the list to query for
-   * @return A list of all past lists of the same stemmed name for the given user with the most
-   *     recent first.
+   * @return The most recent list of the given stemmed name for the given user or null if the user
+   *     has no list of that name.
    */
-  private static List<Entity> fetchExistingListQuery(
+  private static Entity fetchCurrentList(
       DatastoreService datastore, String userID, String stemmedListName) {
-    Filter filter =
-        new CompositeFilter(
-            CompositeFilterOperator.AND,
-            Arrays.asList(
-                new FilterPredicate("userID", FilterOperator.EQUAL, userID),
-                new FilterPredicate("stemmedListName", FilterOperator.EQUAL, stemmedListName)));
-    Query query =
-        new Query("List").setFilter(filter).addSort("timestamp", SortDirection.DESCENDING);
-    return datastore.prepare(query).asList(FetchOptions.Builder.withDefaults());
+    Entity cachedList = MemoryCache.getCurrentList(userID, stemmedListName);
+    if (cachedList != null) {
+      return cachedList;
+    }
+    try {
+      Entity currentList = datastore.get(getCurrentListKey(userID, stemmedListName));
+      MemoryCache.cacheCurrentList(userID, stemmedListName, currentList);
+      return currentList;
+    } catch (EntityNotFoundException e) {
+      Filter filter =
+          new CompositeFilter(
+              CompositeFilterOperator.AND,
+              Arrays.asList(
+                  new FilterPredicate("userID", FilterOperator.EQUAL, userID),
+                  new FilterPredicate("stemmedListName", FilterOperator.EQUAL, stemmedListName)));
+      Query query =
+          new Query("List").setFilter(filter).addSort("timestamp", SortDirection.DESCENDING);
+      List<Entity> legacyList = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+      return legacyList.isEmpty() ? null : legacyList.get(0);
+    }
   }
 
   /**
@@ -482,7 +597,7 @@ public class MemoryUtils {
       boolean newList)
       throws InvalidRequestException {
     log.info("making storeInfo api request");
-    RestTemplate restTemplate = new RestTemplate();
+    RestTemplate restTemplate = RecommendationsClient.getRestTemplate();
     String urlString = "https://arliu-step-2020-3.wl.r.appspot.com/storeInfo?userID=" + userID +
     "&stemmedListName=" + stemmedListName + "&newList=" + newList;
     HttpEntity<List<String>> entity = new HttpEntity<>(items);
@@ -509,7 +624,7 @@ public class MemoryUtils {
       String userID, String listName, RecommendationsClient recommender)
       throws EntityNotFoundException, IllegalStateException, URISyntaxException {
     List<Pair<String, Double>> itemPairs =
-        recommender.getPastRecommendations(StemUtils.stemmed(listName));
+        recommender.getTopPastRecommendations(StemUtils.stemmed(listName), 3);
     List<String> formattedResult = filterTopResults(itemPairs);
     return getSuggestedItems(formattedResult);
   }
@@ -531,7 +646,8 @@ public class MemoryUtils {
     String stemmedListName = StemUtils.stemmed(listName);
     List<String> stemmedCurrentListItems = getCurrentItems(userID, datastore, stemmedListName);
 
-    List<Pair<String, Double>> itemPairs = recommender.getUserRecommendations(stemmedListName);
+    List<Pair<String, Double>> itemPairs =
+        recommender.getTopUserRecommendations(stemmedListName, 3, stemmedCurrentListItems);
     List<String> formattedResult = filterTopResults(itemPairs, stemmedCurrentListItems);
     return getSuggestedItems(formattedResult);
   }
@@ -549,7 +665,7 @@ public class MemoryUtils {
   private static List<Pair<String, Double>> callRecommendationsAPI(
       String methodName, String userID, String stemmedListName) throws URISyntaxException {
     log.info("making pastUserRecs api request");
-    RestTemplate restTemplate = new RestTemplate();
+    RestTemplate restTemplate = RecommendationsClient.getRestTemplate();
     String urlString = "https://arliu-step-2020-3.wl.r.appspot.com/" + methodName + "?userID=" +
     userID + "&stemmedListName=" + stemmedListName;
     URI uri = new URI(urlString);
@@ -601,11 +717,12 @@ public class MemoryUtils {
    */
   private static List<String> filterTopResults(
       List<Pair<String, Double>> items, List<String> existingItems) {
+    Set<String> existingItemSet = new HashSet<>(existingItems);
     List<String> filteredUserInterest =
         items.stream()
             .filter(
                 e ->
-                    (!existingItems.contains(StemUtils.stemmed(e.getKey()))
+                    (!existingItemSet.contains(StemUtils.stemmed(e.getKey()))
                         && (e.getValue() > 0.4)))
             .map(e -> e.getKey())
             .collect(Collectors.toList());
@@ -638,15 +755,14 @@ public class MemoryUtils {
   private static List<String> getCurrentItems(
       String userID, DatastoreService datastore, String stemmedListName)
       throws IllegalStateException {
-    List<Entity> allPastLists = fetchExistingListQuery(datastore, userID, stemmedListName);
-    if (allPastLists.isEmpty()) {
+    Entity currentList = fetchCurrentList(datastore, userID, stemmedListName);
+    if (currentList == null) {
       throw new IllegalStateException(
           "No past lists exist of the given stemmed name \""
               + stemmedListName
               + "\" for user "
               + userID);
     }
-    Entity currentList = allPastLists.get(0);
     List<String> listItems = (List<String>) currentList.getProperty("items");
     if (listItems == null) {
       throw new IllegalStateException(
@@ -667,6 +783,28 @@ public class MemoryUtils {
    */
   public static List<String> getRecommendations(String userID, DatastoreService datastore)
       throws IllegalStateException {
+    String lastComment = (String) getLastAssistantComment(userID, datastore).getProperty("comment");
+    List<String> recommendedItems = ListTokenizer.getRecommendedItems(lastComment);
+    if (recommendedItems == null) {
+      throw new IllegalStateException("Most recent valid response was not a recommendation");
+    }
+    return recommendedItems;
+  }
+
+  /**
+   * Retrieves the most recent assistant comment that was not an error response from the memory
+   * cache, or else reads only the single most recent comment from datastore.
+   *
+   * @param userID String containing current user's unique ID
+   * @param datastore Datastore instance to used to retrieve past comment history
+   * @return Comment entity of the last valid assistant turn.
+   */
+  public static Entity getLastAssistantComment(String userID, DatastoreService datastore)
+      throws IllegalStateException {
+    Entity cachedComment = MemoryCache.getLastAssistantComment(userID);
+    if (cachedComment != null) {
+      return cachedComment;
+    }
     Filter queryFilter =
         new CompositeFilter(
             CompositeFilterOperator.AND,
@@ -678,16 +816,12 @@ public class MemoryUtils {
         new Query("CommentHistory")
             .setFilter(queryFilter)
             .addSort("timestamp", SortDirection.DESCENDING);
-    Entity entity = datastore.prepare(query).asList(FetchOptions.Builder.withDefaults()).get(0);
-    String lastComment = (String) entity.getProperty("comment");
-
-    Pattern pattern =
-        Pattern.compile("(would you like to add|might be interested in adding) (.*?)(\\?| to)");
-    Matcher matcher = pattern.matcher(lastComment);
-    if (matcher.find()) {
-      return MemoryAgent.unpackObjects(matcher.group(2));
+    List<Entity> results = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+    if (results.isEmpty()) {
+      throw new IllegalStateException("No valid assistant comments exist for user " + userID);
     }
-    throw new IllegalStateException("Most recent valid response was not a recommendation");
+    MemoryCache.cacheLastAssistantComment(userID, results.get(0));
+    return results.get(0);
   }
 
   /**
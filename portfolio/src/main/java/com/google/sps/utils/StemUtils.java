@@ -17,6 +17,8 @@
 package com.google.sps.utils;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,18 +28,48 @@ import org.tartarus.snowball.ext.englishStemmer;
 public class StemUtils {
 
   private static Logger log = LoggerFactory.getLogger(StemUtils.class);
+  private static final int MAX_CACHED_STEMS = 10000;
+  private static final ThreadLocal<SnowballStemmer> stemmer =
+      ThreadLocal.withInitial(englishStemmer::new);
+  private static final Map<String, String> stemCache = new ConcurrentHashMap<>();
 
   /**
-   * Reduces words to their stems for word correlation.
+   * Reduces words to their stems for word correlation. Stems are memoized and each thread reuses its
+   * own stemmer instance.
    *
    * @param word Word to be reduced
    * @return The stem of the inputted word.
    */
   public static String stemmed(String word) {
-    SnowballStemmer snowballStemmer = new englishStemmer();
-    snowballStemmer.setCurrent(word);
-    snowballStemmer.stem();
-    return snowballStemmer.getCurrent().toLowerCase().replaceAll("\\s+", "");
+    String stem = stemCache.get(word);
+    if (stem == null) {
+      SnowballStemmer snowballStemmer = stemmer.get();
+      snowballStemmer.setCurrent(word);
+      snowballStemmer.stem();
+      stem = removeWhitespace(snowballStemmer.getCurrent().toLowerCase());
+      if (stemCache.size() >= MAX_CACHED_STEMS) {
+        stemCache.clear();
+      }
+      stemCache.put(word, stem);
+    }
+    return stem;
+  }
+
+  /**
+   * Removes all whitespace characters from a string.
+   *
+   * @param word String to remove whitespace from
+   * @return The input string without whitespace
+   */
+  private static String removeWhitespace(String word) {
+    StringBuilder sb = new StringBuilder(word.length());
+    for (int i = 0; i < word.length(); i++) {
+      char ch = word.charAt(i);
+      if (!Character.isWhitespace(ch)) {
+        sb.append(ch);
+      }
+    }
+    return sb.toString();
   }
 
   /**
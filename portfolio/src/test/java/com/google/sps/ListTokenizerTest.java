@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for extracting list items from list utterances */
+@RunWith(JUnit4.class)
+public final class ListTokenizerTest {
+
+  @Test
+  public void testSingleItem() throws Exception {
+    assertEquals(Arrays.asList("apples"), ListTokenizer.unpackObjects("apples"));
+    assertEquals(Arrays.asList("ice cream"), ListTokenizer.unpackObjects("ice cream"));
+  }
+
+  @Test
+  public void testAndSeparatedItems() throws Exception {
+    assertEquals(Arrays.asList("milk", "honey"), ListTokenizer.unpackObjects("milk and honey"));
+    assertEquals(
+        Arrays.asList("sandwiches", "candy"), ListTokenizer.unpackObjects("sandwiches and candy"));
+  }
+
+  @Test
+  public void testCommaSeparatedItems() throws Exception {
+    assertEquals(
+        Arrays.asList("apples", "bananas", "ice cream"),
+        ListTokenizer.unpackObjects("apples, bananas, and ice cream"));
+    assertEquals(
+        Arrays.asList("apples", "bananas", "ice cream"),
+        ListTokenizer.unpackObjects("apples, bananas and ice cream"));
+    assertEquals(
+        Arrays.asList("apples", "bananas"), ListTokenizer.unpackObjects("apples,   bananas "));
+  }
+
+  @Test
+  public void testConjunctionOnlySplitsLastSegment() throws Exception {
+    assertEquals(
+        Arrays.asList("mac and cheese", "bread", "milk"),
+        ListTokenizer.unpackObjects("mac and cheese, bread and milk"));
+  }
+
+  @Test
+  public void testEmptyInput() throws Exception {
+    assertEquals(Collections.emptyList(), ListTokenizer.unpackObjects(""));
+    assertEquals(Collections.emptyList(), ListTokenizer.unpackObjects("  "));
+  }
+
+  @Test
+  public void testRecommendedItems() throws Exception {
+    assertEquals(
+        Arrays.asList("apple", "ice cream", "pineapple"),
+        ListTokenizer.getRecommendedItems(
+            "Created! Based on your previous grocery lists, would you like to add apple, ice"
+                + " cream, and pineapple?"));
+    assertEquals(
+        Arrays.asList("carrot", "donut"),
+        ListTokenizer.getRecommendedItems(
+            "Updated! Based on your list item preferences, you might be interested in adding"
+                + " carrot and donut to your grocery list."));
+    assertNull(ListTokenizer.getRecommendedItems("Updated!"));
+  }
+}
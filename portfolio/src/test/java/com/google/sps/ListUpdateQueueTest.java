@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.data;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+/** Tests for the task queue of list updates sent to the recommendations API */
+@RunWith(JUnit4.class)
+public final class ListUpdateQueueTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalTaskQueueTestConfig()
+              .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml")
+              .setDisableAutoTaskExecution(true));
+
+  private final List<String> attempts = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  /**
+   * Checks that updates that start a new list are sent immediately and other updates are added to
+   * the task queue with their parameters.
+   */
+  @Test
+  public void testSubmit() {
+    ListUpdateQueue queue =
+        new ListUpdateQueue(QueueFactory.getQueue(ListUpdateQueue.QUEUE_NAME), this::send);
+    queue.submit("1", "groceri", Arrays.asList("appl", "banana"), true, true);
+    assertEquals(Arrays.asList("1"), attempts);
+    queue.submit("1", "groceri", Arrays.asList("carrot", "donut"), false, true);
+    queue.submit("1", "groceri", Arrays.asList("egg"), false, false);
+
+    QueueStateInfo state = getQueueState();
+    assertEquals(2, state.getCountTasks());
+    List<String> bodies = new ArrayList<>();
+    for (TaskStateInfo task : state.getTaskInfo()) {
+      assertEquals(ListUpdateQueue.HANDLER_PATH, task.getUrl());
+      bodies.add(task.getBody());
+    }
+    assertTrue(
+        bodies.contains(
+            "userID=1&stemmedListName=groceri&newList=false&positiveFeedback=true"
+                + "&item=carrot&item=donut"));
+    assertTrue(
+        bodies.contains(
+            "userID=1&stemmedListName=groceri&newList=false&positiveFeedback=false&item=egg"));
+    assertEquals(Arrays.asList("1"), attempts);
+    assertEquals(Long.valueOf(3), queue.getStats().get("submitted"));
+    assertEquals(Long.valueOf(1), queue.getStats().get("sent"));
+  }
+
+  /** Checks that an update that starts a new list is queued if it could not be sent. */
+  @Test
+  public void testNewListQueuedOnConnectError() {
+    ListUpdateQueue queue =
+        new ListUpdateQueue(
+            QueueFactory.getQueue(ListUpdateQueue.QUEUE_NAME),
+            (userID, stemmedListName, items, newList, positiveFeedback) -> {
+              attempts.add(userID);
+              throw new ResourceAccessException("refused", new ConnectException());
+            });
+    queue.submit("1", "groceri", Arrays.asList("appl"), true, true);
+
+    assertEquals(Arrays.asList("1"), attempts);
+    assertEquals(
+        "userID=1&stemmedListName=groceri&newList=true&positiveFeedback=true&item=appl",
+        getQueueState().getTaskInfo().get(0).getBody());
+  }
+
+  /** Checks that updates that cannot be added to the task queue are dropped and counted. */
+  @Test
+  public void testRejection() {
+    ListUpdateQueue queue = new ListUpdateQueue(QueueFactory.getQueue("missing"), this::send);
+    queue.submit("1", "groceri", Arrays.asList("appl"), false, true);
+
+    assertEquals(Long.valueOf(1), queue.getStats().get("rejected"));
+  }
+
+  /** Checks that only failures to connect are retried, since updates are not idempotent. */
+  @Test
+  public void testRetryOnlyConnectErrors() {
+    ListUpdateQueue queue =
+        new ListUpdateQueue(
+            QueueFactory.getQueue(ListUpdateQueue.QUEUE_NAME),
+            (userID, stemmedListName, items, newList, positiveFeedback) -> {
+              attempts.add(userID);
+              if (userID.equals("1")) {
+                throw new ResourceAccessException("refused", new ConnectException());
+              }
+              if (userID.equals("2")) {
+                throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE);
+              }
+              if (userID.equals("3")) {
+                throw new HttpClientErrorException(HttpStatus.BAD_REQUEST);
+              }
+            });
+    List<String> items = Arrays.asList("appl");
+    assertFalse(queue.deliver("1", "groceri", items, true, true));
+    assertTrue(queue.deliver("2", "groceri", items, true, true));
+    assertTrue(queue.deliver("3", "groceri", items, true, true));
+    assertTrue(queue.deliver("4", "groceri", items, true, true));
+
+    assertEquals(Arrays.asList("1", "2", "3", "4"), attempts);
+    assertEquals(Long.valueOf(1), queue.getStats().get("retried"));
+    assertEquals(Long.valueOf(2), queue.getStats().get("failed"));
+    assertEquals(Long.valueOf(1), queue.getStats().get("sent"));
+  }
+
+  private QueueStateInfo getQueueState() {
+    return LocalTaskQueueTestConfig.getLocalTaskQueue()
+        .getQueueStateInfo()
+        .get(ListUpdateQueue.QUEUE_NAME);
+  }
+
+  private void send(
+      String userID,
+      String stemmedListName,
+      List<String> items,
+      boolean newList,
+      boolean positiveFeedback) {
+    attempts.add(userID);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.utils;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.protobuf.Value;
+import com.google.sps.data.RecommendationsClient;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the memory read-through cache and its write-through invalidation */
+@RunWith(JUnit4.class)
+public final class MemoryCacheTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private DatastoreService datastore;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    MemoryCache.useInProcessStore();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void testLastAssistantCommentIsCached() throws Exception {
+    MemoryUtils.makeCommentEntity("1", datastore, "First response", false, 1L);
+    assertEquals(
+        "First response",
+        MemoryUtils.getLastAssistantComment("1", datastore).getProperty("comment"));
+
+    deleteAll("CommentHistory");
+    assertEquals(
+        "First response",
+        MemoryUtils.getLastAssistantComment("1", datastore).getProperty("comment"));
+  }
+
+  @Test
+  public void testLastAssistantCommentWriteThrough() throws Exception {
+    MemoryUtils.makeCommentEntity("1", datastore, "First response", false, 1L);
+    MemoryUtils.getLastAssistantComment("1", datastore);
+
+    MemoryUtils.makeCommentEntity("1", datastore, "Second response", false, 3L);
+    MemoryUtils.makeCommentEntity("1", datastore, "Older response", false, 2L);
+    MemoryUtils.makeCommentEntity("1", datastore, "User comment", true, 4L);
+    MemoryUtils.makeCommentEntity("1", datastore, AgentUtils.DEFAULT_FALLBACK, false, 5L);
+    assertEquals(
+        "Second response",
+        MemoryUtils.getLastAssistantComment("1", datastore).getProperty("comment"));
+  }
+
+  @Test
+  public void testPastListsInvalidatedOnListWrite() throws Exception {
+    Map<String, Value> parameters = listParameters("");
+    MemoryUtils.makeListEntity(datastore, "1", Arrays.asList("apples"), "grocery", 1L);
+    assertEquals(1, MemoryUtils.getPastUserLists(datastore, "1", parameters).size());
+
+    MemoryUtils.makeListEntity(datastore, "1", Arrays.asList("paper"), "office", 2L);
+    List<Entity> pastLists = MemoryUtils.getPastUserLists(datastore, "1", parameters);
+    assertEquals(2, pastLists.size());
+    assertEquals("office", pastLists.get(0).getProperty("listName"));
+  }
+
+  @Test
+  public void testEvictedListVersionNotReused() throws Exception {
+    String firstKey = MemoryCache.getPastListsKey("1", "query");
+    MemoryCache.invalidatePastLists("1");
+    String secondKey = MemoryCache.getPastListsKey("1", "query");
+    assertNotEquals(firstKey, secondKey);
+
+    MemoryCache.evictListVersion("1");
+    MemoryCache.invalidatePastLists("1");
+    String thirdKey = MemoryCache.getPastListsKey("1", "query");
+    assertNotEquals(firstKey, thirdKey);
+    assertNotEquals(secondKey, thirdKey);
+  }
+
+  @Test
+  public void testAddToCachedList() throws Exception {
+    RecommendationsClient recommender = mock(RecommendationsClient.class);
+    MemoryUtils.makeListEntity(datastore, "1", Arrays.asList("apples"), "grocery", 1L);
+
+    assertTrue(
+        MemoryUtils.addToList("grocery", "1", datastore, Arrays.asList("milk"), recommender));
+    assertTrue(
+        MemoryUtils.addToList("grocery", "1", datastore, Arrays.asList("eggs"), recommender));
+
+    List<Entity> lists = fetch("List");
+    assertEquals(1, lists.size());
+    assertEquals(Arrays.asList("apples", "milk", "eggs"), lists.get(0).getProperty("items"));
+    assertEquals(
+        Arrays.asList("apples", "milk", "eggs"),
+        MemoryUtils.getPastUserLists(datastore, "1", listParameters("grocery"))
+            .get(0)
+            .getProperty("items"));
+  }
+
+  private Map<String, Value> listParameters(String listName) {
+    Map<String, Value> parameters = new HashMap<>();
+    parameters.put("list-name", Value.newBuilder().setStringValue(listName).build());
+    parameters.put("number", Value.newBuilder().setStringValue("-1").build());
+    parameters.put("date-time-enhanced", Value.newBuilder().setStringValue("").build());
+    return parameters;
+  }
+
+  private List<Entity> fetch(String kind) {
+    return datastore.prepare(new Query(kind)).asList(FetchOptions.Builder.withDefaults());
+  }
+
+  private void deleteAll(String kind) {
+    for (Entity entity : fetch(kind)) {
+      datastore.delete(entity.getKey());
+    }
+  }
+}
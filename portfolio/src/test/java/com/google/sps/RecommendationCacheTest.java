@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.data;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the client-side cache of recommendations */
+@RunWith(JUnit4.class)
+public final class RecommendationCacheTest {
+
+  private static final List<String> ITEMS =
+      Arrays.asList("appl", "banana", "carrot", "donut", "egg", "fig", "grape", "ham");
+
+  private final List<List<String>> loads = new ArrayList<>();
+
+  /** Checks that growing exclusions are served from the cached result while enough items remain. */
+  @Test
+  public void testExcludedItemsFiltered() {
+    RecommendationCache cache = new RecommendationCache(60000, 60000);
+    assertEquals(
+        Arrays.asList("banana", "carrot", "donut"),
+        get(cache, "general", Arrays.asList("appl")));
+    assertEquals(
+        Arrays.asList("carrot", "egg", "fig"),
+        get(cache, "general", Arrays.asList("appl", "banana", "donut")));
+    assertEquals(
+        Arrays.asList("grape", "ham"),
+        get(cache, "general", Arrays.asList("appl", "banana", "carrot", "donut", "egg", "fig")));
+    assertEquals(1, loads.size());
+
+    get(cache, "general", Arrays.asList("banana"));
+    assertEquals(2, loads.size());
+  }
+
+  /**
+   * Checks that a stale result is refreshed by the next request while other requests are served
+   * the stale result, and that expired results are reloaded.
+   */
+  @Test
+  public void testStaleWhileRevalidate() {
+    RecommendationCache cache = new RecommendationCache(0, 60000);
+    get(cache, "past", Collections.emptyList());
+    List<List<String>> duringRefresh = new ArrayList<>();
+    cache.get(
+        "1",
+        "groceri",
+        "past",
+        3,
+        Collections.emptyList(),
+        (k, exclude) -> {
+          duringRefresh.add(get(cache, "past", Collections.emptyList()));
+          return load(k, exclude);
+        });
+    assertEquals(Arrays.asList(Arrays.asList("appl", "banana", "carrot")), duringRefresh);
+    assertEquals(2, loads.size());
+
+    RecommendationCache expiring = new RecommendationCache(0, 0);
+    get(expiring, "past", Collections.emptyList());
+    get(expiring, "past", Collections.emptyList());
+    assertEquals(4, loads.size());
+  }
+
+  /** Checks that the stale result is served when it cannot be refreshed. */
+  @Test
+  public void testRefreshFailure() {
+    RecommendationCache cache = new RecommendationCache(0, 60000);
+    get(cache, "past", Collections.emptyList());
+    List<Pair<String, Double>> result =
+        cache.get(
+            "1",
+            "groceri",
+            "past",
+            3,
+            Collections.emptyList(),
+            (k, exclude) -> {
+              throw new IllegalStateException("recommendations API unavailable");
+            });
+    assertEquals(
+        Arrays.asList("appl", "banana", "carrot"),
+        result.stream().map(Pair::getKey).collect(Collectors.toList()));
+    get(cache, "past", Collections.emptyList());
+    assertEquals(2, loads.size());
+  }
+
+  /** Checks that updating a list drops its results in every mode but not those of other lists. */
+  @Test
+  public void testInvalidate() {
+    RecommendationCache cache = new RecommendationCache(60000, 60000);
+    get(cache, "past", Collections.emptyList());
+    get(cache, "general", Collections.emptyList());
+    cache.get("1", "shop", "past", 3, Collections.emptyList(), this::load);
+    cache.invalidate("1", "groceri");
+    get(cache, "past", Collections.emptyList());
+    get(cache, "general", Collections.emptyList());
+    cache.get("1", "shop", "past", 3, Collections.emptyList(), this::load);
+    assertEquals(5, loads.size());
+  }
+
+  /** Checks that a refresh started before an update of the list does not cache its result. */
+  @Test
+  public void testInvalidateDuringLoad() {
+    RecommendationCache cache = new RecommendationCache(60000, 60000);
+    cache.get(
+        "1",
+        "groceri",
+        "past",
+        3,
+        Collections.emptyList(),
+        (k, exclude) -> {
+          cache.invalidate("1", "groceri");
+          return load(k, exclude);
+        });
+    get(cache, "past", Collections.emptyList());
+    assertEquals(2, loads.size());
+  }
+
+  /**
+   * Checks that the versions of updated lists are dropped once too many are kept, and that a load
+   * started before they were dropped does not cache its result.
+   */
+  @Test
+  public void testListVersionsPruned() {
+    RecommendationCache cache = new RecommendationCache(60000, 60000);
+    for (int i = 0; i < 1500; i++) {
+      cache.invalidate(String.valueOf(i), "groceri");
+    }
+    assertTrue(cache.listVersionCount() <= 1000);
+
+    cache.get(
+        "1",
+        "groceri",
+        "past",
+        3,
+        Collections.emptyList(),
+        (k, exclude) -> {
+          for (int i = 0; i < 1000; i++) {
+            cache.invalidate("other" + i, "groceri");
+          }
+          return load(k, exclude);
+        });
+    get(cache, "past", Collections.emptyList());
+    assertEquals(2, loads.size());
+  }
+
+  private List<String> get(RecommendationCache cache, String mode, List<String> exclude) {
+    return cache.get("1", "groceri", mode, 3, exclude, this::load).stream()
+        .map(Pair::getKey)
+        .collect(Collectors.toList());
+  }
+
+  /** Returns the first k items that are not excluded with descending frequencies. */
+  private List<Pair<String, Double>> load(int k, List<String> exclude) {
+    loads.add(exclude);
+    List<Pair<String, Double>> result = new ArrayList<>();
+    for (String item : ITEMS) {
+      if (result.size() < k && !exclude.contains(item)) {
+        result.add(new Pair<>(item, 1.0 / (result.size() + 1)));
+      }
+    }
+    return result;
+  }
+}
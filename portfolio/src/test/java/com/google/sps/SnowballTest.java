@@ -18,6 +18,8 @@ package com.google.sps.servlets;
 
 import static org.junit.Assert.*;
 
+import com.google.sps.utils.StemUtils;
+import java.util.Arrays;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -65,4 +67,15 @@ public final class SnowballTest {
     String result3 = snowballStemmer.getCurrent();
     Assert.assertEquals(result2, result3.toLowerCase());
   }
+
+  @Test
+  public void testStemUtils() throws Exception {
+    Assert.assertEquals("groceri", StemUtils.stemmed("Groceries"));
+    Assert.assertEquals("icecream", StemUtils.stemmed("ice cream"));
+    // Repeated lookups are served from the stem cache and must match the first result.
+    Assert.assertEquals("groceri", StemUtils.stemmed("Groceries"));
+    Assert.assertEquals(
+        Arrays.asList("appl", "banana", "icecream"),
+        StemUtils.stemmedList(Arrays.asList("apples", "bananas", "ice cream")));
+  }
 }
@@ -76,6 +76,7 @@ public class TestHelper {
   /** Default constructor for TestHelper that sets up testing environment and empty mocks. */
   public TestHelper() throws URISyntaxException {
     helper.setUp();
+    MemoryCache.useInProcessStore();
     customDatastore = DatastoreServiceFactory.getDatastoreService();
     userServiceMock = mock(UserService.class);
     request = mock(HttpServletRequest.class);
@@ -94,6 +95,10 @@ public class TestHelper {
         .thenReturn(new ArrayList<Pair<String, Double>>());
     when(recommenderMock.getUserRecommendations(any(String.class)))
         .thenReturn(new ArrayList<Pair<String, Double>>());
+    when(recommenderMock.getTopPastRecommendations(any(String.class), anyInt()))
+        .thenReturn(new ArrayList<Pair<String, Double>>());
+    when(recommenderMock.getTopUserRecommendations(any(String.class), anyInt(), any(List.class)))
+        .thenReturn(new ArrayList<Pair<String, Double>>());
     servlet = new TestableTextInputServlet();
     sessionID = "fallbackTestingID";
     setLoggedIn();
@@ -485,6 +490,8 @@ public class TestHelper {
   public void setPastRecommendations(List<Pair<String, Double>> itemPairs)
       throws URISyntaxException {
     when(recommenderMock.getPastRecommendations(any(String.class))).thenReturn(itemPairs);
+    when(recommenderMock.getTopPastRecommendations(any(String.class), anyInt()))
+        .thenReturn(itemPairs);
   }
 
   /**
@@ -495,6 +502,8 @@ public class TestHelper {
   public void setUserRecommendations(List<Pair<String, Double>> itemPairs)
       throws URISyntaxException {
     when(recommenderMock.getUserRecommendations(any(String.class))).thenReturn(itemPairs);
+    when(recommenderMock.getTopUserRecommendations(any(String.class), anyInt(), any(List.class)))
+        .thenReturn(itemPairs);
   }
 
   /** Removes stored items in datastore instance. */
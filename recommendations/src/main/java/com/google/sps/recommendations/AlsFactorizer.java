@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.factory.LinearSolverFactory_DDRM;
+import org.ejml.interfaces.linsol.LinearSolverDense;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Alternating least squares matrix factorization. Each iteration fixes the item factors and solves
+ * every user's K x K regularized normal equations, then fixes the user factors and solves every
+ * item's. Users (and items) are independent of each other within a half-iteration, so they are
+ * solved in parallel on a ForkJoinPool.
+ */
+public class AlsFactorizer implements FactorizationSolver {
+
+  private static Logger log = LoggerFactory.getLogger(AlsFactorizer.class);
+  private static final double MIN_RELATIVE_IMPROVEMENT = 1e-4;
+  private static final int ROWS_PER_TASK = 64;
+
+  private final int K;
+  private final int iterations;
+  private final double beta;
+  private final ForkJoinPool pool;
+
+  /**
+   * AlsFactorizer constructor.
+   *
+   * @param k Number of latent features
+   * @param iterations Maximum number of alternating iterations to run
+   * @param beta Regularization factor, applied per observed entry as in SGD
+   * @param pool ForkJoinPool to solve users and items on
+   */
+  public AlsFactorizer(int k, int iterations, double beta, ForkJoinPool pool) {
+    K = k;
+    this.iterations = iterations;
+    this.beta = beta;
+    this.pool = pool;
+  }
+
+  /**
+   * AlsFactorizer constructor that solves on the common ForkJoinPool.
+   *
+   * @param k Number of latent features
+   * @param iterations Maximum number of alternating iterations to run
+   * @param beta Regularization factor, applied per observed entry as in SGD
+   */
+  public AlsFactorizer(int k, int iterations, double beta) {
+    this(k, iterations, beta, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Training stops once an iteration improves the regularized squared error by less than a
+   * relative 1e-4 or the maximum number of iterations has been run. The initial user factors are
+   * not used since users are solved first.
+   */
+  @Override
+  public double[] factorize(SparseMatrix data, double[] userFeatures, double[] itemFeatures)
+      throws IllegalStateException {
+    SparseMatrix transposed = data.transpose();
+    double previousError = Double.POSITIVE_INFINITY;
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      pool.invoke(new SolveTask(data, itemFeatures, userFeatures, 0, data.numRows()));
+      pool.invoke(new SolveTask(transposed, userFeatures, itemFeatures, 0, transposed.numRows()));
+      double totalError = loss(data, userFeatures, itemFeatures);
+      if (!Double.isFinite(totalError)) {
+        log.error("Failure at iteration: " + iteration);
+        throw new IllegalStateException("NaN error in matrix factorization.");
+      }
+      if (totalError > previousError * (1 - MIN_RELATIVE_IMPROVEMENT)) {
+        log.info("Converged at iteration " + iteration + " with error " + totalError);
+        break;
+      }
+      previousError = totalError;
+    }
+    return FactorizationSolver.predict(userFeatures, itemFeatures, K);
+  }
+
+  /**
+   * Solves the user factors of every row of the data matrix against fixed, already trained item
+   * factors, without updating the items. Used to fold users into a trained model, at a cost of
+   * O(n K^2 + K^3) per user with n observed items.
+   *
+   * @param data Sparse matrix of the users to solve, with columns matching the item factors
+   * @param itemFeatures Trained item factors, numItems x K
+   * @return Solved user factors, numUsers x K
+   */
+  public double[] solveUsers(SparseMatrix data, double[] itemFeatures)
+      throws IllegalStateException {
+    double[] userFeatures = new double[data.numRows() * K];
+    new SolveTask(data, itemFeatures, userFeatures, 0, data.numRows()).compute();
+    return userFeatures;
+  }
+
+  /** Returns the regularized squared error of the factors over the observed entries. */
+  private double loss(SparseMatrix data, double[] userFeatures, double[] itemFeatures) {
+    double totalError = 0.0;
+    for (int row = 0; row < data.numRows(); row++) {
+      int userOffset = row * K;
+      for (int entry = data.rowStart(row); entry < data.rowEnd(row); entry++) {
+        int itemOffset = data.col(entry) * K;
+        double error =
+            data.value(entry)
+                - FactorizationSolver.dot(userFeatures, userOffset, itemFeatures, itemOffset, K);
+        totalError += error * error;
+        for (int k = 0; k < K; k++) {
+          double userFeature = userFeatures[userOffset + k];
+          double itemFeature = itemFeatures[itemOffset + k];
+          totalError += (beta / 2) * (userFeature * userFeature + itemFeature * itemFeature);
+        }
+      }
+    }
+    return totalError;
+  }
+
+  /**
+   * Solves the factors of a range of rows of the data matrix against the fixed factors of its
+   * columns, splitting the range until it is small enough to solve directly.
+   */
+  private class SolveTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final SparseMatrix data;
+    private final double[] fixedFeatures;
+    private final double[] solvedFeatures;
+    private final int start;
+    private final int end;
+
+    SolveTask(
+        SparseMatrix data, double[] fixedFeatures, double[] solvedFeatures, int start, int end) {
+      this.data = data;
+      this.fixedFeatures = fixedFeatures;
+      this.solvedFeatures = solvedFeatures;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > ROWS_PER_TASK) {
+        int middle = (start + end) >>> 1;
+        invokeAll(
+            new SolveTask(data, fixedFeatures, solvedFeatures, start, middle),
+            new SolveTask(data, fixedFeatures, solvedFeatures, middle, end));
+        return;
+      }
+      DMatrixRMaj normalMatrix = new DMatrixRMaj(K, K);
+      DMatrixRMaj projection = new DMatrixRMaj(K, 1);
+      DMatrixRMaj solution = new DMatrixRMaj(K, 1);
+      LinearSolverDense<DMatrixRMaj> solver = LinearSolverFactory_DDRM.chol(K);
+      for (int row = start; row < end; row++) {
+        solveRow(row, normalMatrix, projection, solution, solver);
+      }
+    }
+
+    /**
+     * Solves (F^T F + (beta / 2) n I) x = F^T r for one row, where F holds the fixed factors of
+     * the row's n observed columns and r holds their values.
+     */
+    private void solveRow(
+        int row,
+        DMatrixRMaj normalMatrix,
+        DMatrixRMaj projection,
+        DMatrixRMaj solution,
+        LinearSolverDense<DMatrixRMaj> solver) {
+      int rowOffset = row * K;
+      int numObserved = data.rowEnd(row) - data.rowStart(row);
+      if (numObserved == 0) {
+        Arrays.fill(solvedFeatures, rowOffset, rowOffset + K, 0.0);
+        return;
+      }
+      double[] a = normalMatrix.data;
+      double[] b = projection.data;
+      Arrays.fill(a, 0.0);
+      Arrays.fill(b, 0.0);
+      for (int entry = data.rowStart(row); entry < data.rowEnd(row); entry++) {
+        int fixedOffset = data.col(entry) * K;
+        double value = data.value(entry);
+        for (int i = 0; i < K; i++) {
+          double feature = fixedFeatures[fixedOffset + i];
+          b[i] += value * feature;
+          for (int j = 0; j < K; j++) {
+            a[i * K + j] += feature * fixedFeatures[fixedOffset + j];
+          }
+        }
+      }
+      for (int i = 0; i < K; i++) {
+        a[i * K + i] += (beta / 2) * numObserved;
+      }
+      if (!solver.setA(normalMatrix)) {
+        throw new IllegalStateException("Singular normal equations in matrix factorization.");
+      }
+      solver.solve(projection, solution);
+      System.arraycopy(solution.data, 0, solvedFeatures, rowOffset, K);
+    }
+  }
+}
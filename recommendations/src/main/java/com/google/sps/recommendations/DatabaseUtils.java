@@ -17,9 +17,13 @@
 package com.google.sps.recommendations;
 
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.gson.Gson;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Struct;
@@ -30,12 +34,19 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,11 +54,27 @@ import org.slf4j.LoggerFactory;
 public class DatabaseUtils {
 
   private static Logger log = LoggerFactory.getLogger(DatabaseUtils.class);
-  public static final List<String> AGG_ENTITY_ID_PROPERTIES =
-      Arrays.asList("userID", "timestamp", "count", "listName");
+  private static final String EPOCH_PROPERTY = "epoch";
+  private static final String ITEM_EPOCHS_PROPERTY = "itemEpochs";
+  private static final double DECAY_RATE = 0.6;
+  public static final Set<String> AGG_ENTITY_ID_PROPERTIES =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(
+                  "userID",
+                  "timestamp",
+                  "count",
+                  "listName",
+                  EPOCH_PROPERTY,
+                  ITEM_EPOCHS_PROPERTY)));
+  private static final int MAX_TRANSACTION_RETRIES = 10;
+  private static final int MAX_EVENTS_PER_BATCH = 200;
 
   /**
    * Stores the integer aggregate count of number of times user has placed a given item in a list.
+   * The aggregate and fractional entities of the user are read with one batched get and written
+   * with one batched put in a single transaction, so concurrent updates from the same user are not
+   * lost.
    *
    * @param datastore Database entity to retrieve data from
    * @param userID String containing current user's unique ID
@@ -60,40 +87,176 @@ public class DatabaseUtils {
       String userID,
       String stemmedListName,
       List<String> items,
-      boolean newList) {
+      boolean newList)
+      throws IllegalStateException {
     if (items == null || items.isEmpty()) {
       return; // Do not store aggregate info for lists with no items.
     }
-    Entity aggregateEntity;
-    try {
-      aggregateEntity = datastore.get(KeyFactory.createKey(stemmedListName, userID));
-    } catch (EntityNotFoundException e) {
-      aggregateEntity = new Entity(stemmedListName, userID);
+    StemUtils.saveStemData(datastore, userID, items);
+    List<String> stemmedItems = StemUtils.stemmedList(items);
+    Key aggregateKey = KeyFactory.createKey(stemmedListName, userID);
+    Key fracKey = KeyFactory.createKey("Frac-" + stemmedListName, userID);
+    Entity fracEntity =
+        runInTransaction(
+            datastore,
+            txn -> {
+              Map<Key, Entity> entities =
+                  new HashMap<>(datastore.get(txn, Arrays.asList(aggregateKey, fracKey)));
+              Entity updatedFracEntity =
+                  addList(entities, userID, stemmedListName, stemmedItems, newList);
+              datastore.put(txn, entities.values());
+              return updatedFracEntity;
+            });
+    fracEntityUpdated(datastore, stemmedListName, fracEntity);
+  }
+
+  /**
+   * Stores the list events read from newline-delimited JSON, as if each had been sent to /storeInfo
+   * in order, then schedules one retraining per affected list. Events are read incrementally and
+   * applied in batches: the aggregate and fractional entities of a batch are read with one batched
+   * get, every event of the batch is applied in memory, and the entities are written back with one
+   * batched put. Batches are not transactional, so the input should not overlap with concurrent
+   * updates of the same users. Lists of batches stored before an invalid event are still retrained.
+   *
+   * @param datastore Database instance
+   * @param in Reader of the newline-delimited JSON list events
+   * @return Number of events read
+   * @throws IOException if the input cannot be read or contains an invalid event
+   */
+  public static int storeListEvents(DatastoreService datastore, Reader in)
+      throws IOException, IllegalStateException {
+    Set<String> stemmedListNames = new LinkedHashSet<>();
+    int numEvents = 0;
+    try (ListEventReader reader = new ListEventReader(in)) {
+      List<ListEvent> batch = new ArrayList<>();
+      ListEvent event;
+      while ((event = reader.next()) != null) {
+        batch.add(event);
+        stemmedListNames.add(event.getStemmedListName());
+        numEvents++;
+        if (batch.size() == MAX_EVENTS_PER_BATCH) {
+          storeListEventBatch(datastore, batch);
+          batch.clear();
+        }
+      }
+      storeListEventBatch(datastore, batch);
+    } finally {
+      for (String stemmedListName : stemmedListNames) {
+        RetrainingScheduler.getInstance().markDirty(datastore, stemmedListName);
+      }
+    }
+    return numEvents;
+  }
+
+  /** Applies a batch of list events in memory between one batched get and one batched put. */
+  private static void storeListEventBatch(DatastoreService datastore, List<ListEvent> events) {
+    Map<String, Set<String>> userItems = new HashMap<>();
+    Set<Key> keys = new LinkedHashSet<>();
+    for (ListEvent event : events) {
+      if (event.isPositiveFeedback()) {
+        userItems
+            .computeIfAbsent(event.getUserID(), userID -> new LinkedHashSet<>())
+            .addAll(event.getItems());
+      }
+      keys.add(KeyFactory.createKey(event.getStemmedListName(), event.getUserID()));
+      keys.add(KeyFactory.createKey("Frac-" + event.getStemmedListName(), event.getUserID()));
+    }
+    if (keys.isEmpty()) {
+      return;
+    }
+    for (Map.Entry<String, Set<String>> items : userItems.entrySet()) {
+      StemUtils.saveStemData(datastore, items.getKey(), items.getValue());
+    }
+    Map<Key, Entity> entities = new HashMap<>(datastore.get(keys));
+    for (ListEvent event : events) {
+      List<String> stemmedItems = StemUtils.stemmedList(event.getItems());
+      if (event.isPositiveFeedback()) {
+        if (!stemmedItems.isEmpty()) {
+          addList(
+              entities,
+              event.getUserID(),
+              event.getStemmedListName(),
+              stemmedItems,
+              event.isNewList());
+        }
+      } else {
+        rejectItems(entities, event.getUserID(), event.getStemmedListName(), stemmedItems);
+      }
+    }
+    datastore.put(entities.values());
+  }
+
+  /**
+   * Adds a stored list to the aggregate and fractional entities of its user, creating them if they
+   * are not in the given entities yet.
+   *
+   * @param entities Entities read so far, updated with the new aggregate and fractional entities
+   * @param userID String containing current user's unique ID
+   * @param stemmedListName The name of the list to store aggregation information for.
+   * @param stemmedItems List of stemmed items added to the list
+   * @param newList Indicates whether the list is a new list (true) or updating existing (false)
+   * @return Updated fractional entity of the user
+   */
+  private static Entity addList(
+      Map<Key, Entity> entities,
+      String userID,
+      String stemmedListName,
+      List<String> stemmedItems,
+      boolean newList) {
+    Key aggregateKey = KeyFactory.createKey(stemmedListName, userID);
+    Key fracKey = KeyFactory.createKey("Frac-" + stemmedListName, userID);
+    Entity aggregateEntity = entities.get(aggregateKey);
+    if (aggregateEntity == null) {
+      aggregateEntity = new Entity(aggregateKey);
       aggregateEntity.setProperty("userID", userID);
     }
-    for (String item : items) {
-      String stemmedItem = StemUtils.stemmed(item);
-      StemUtils.saveStemData(datastore, userID, item);
+    for (String stemmedItem : stemmedItems) {
       long prevValue =
           aggregateEntity.getProperty(stemmedItem) == null
               ? 0
               : ((Number) aggregateEntity.getProperty(stemmedItem)).longValue();
       aggregateEntity.setProperty(stemmedItem, prevValue + 1);
     }
-    updateUniqueProperties(datastore, stemmedListName, StemUtils.stemmedList(items));
     aggregateEntity.setProperty("timestamp", System.currentTimeMillis());
+    Entity existingFracEntity = entities.get(fracKey);
     long incrementCount = 0;
     if (newList) {
       incrementCount = 1;
-      decreaseFracEntityWeights(datastore, userID, stemmedListName);
+      decreaseFracEntityWeights(existingFracEntity);
     }
     Object countObject = aggregateEntity.getProperty("count");
     long count = countObject == null ? 0 + incrementCount : ((long) countObject) + incrementCount;
     aggregateEntity.setProperty("count", count);
     aggregateEntity.setProperty("listName", stemmedListName);
     log.info("created aggregate entity: " + aggregateEntity);
-    datastore.put(aggregateEntity);
-    updateFractionalAggregation(datastore, userID, stemmedListName, items, count, count == 1, true);
+    Entity fracEntity =
+        updateFracEntity(existingFracEntity, fracKey, stemmedItems, count, count == 1, true);
+    entities.put(aggregateKey, aggregateEntity);
+    entities.put(fracKey, fracEntity);
+    return fracEntity;
+  }
+
+  /**
+   * Records rejected items in the fractional entity of a user, as the /storeInfo negative feedback
+   * path does. Users without an aggregate entity for the list are skipped.
+   *
+   * @param entities Entities read so far, updated with the new fractional entity
+   * @param userID String containing current user's unique ID
+   * @param stemmedListName Stemmed name of the list the items were rejected for
+   * @param stemmedItems List of stemmed items rejected by the user
+   */
+  private static void rejectItems(
+      Map<Key, Entity> entities, String userID, String stemmedListName, List<String> stemmedItems) {
+    Entity aggregateEntity = entities.get(KeyFactory.createKey(stemmedListName, userID));
+    if (aggregateEntity == null) {
+      log.info("Skipping rejected items of unknown list " + stemmedListName + " of " + userID);
+      return;
+    }
+    Key fracKey = KeyFactory.createKey("Frac-" + stemmedListName, userID);
+    long listCount = (long) aggregateEntity.getProperty("count");
+    entities.put(
+        fracKey,
+        updateFracEntity(entities.get(fracKey), fracKey, stemmedItems, listCount, false, false));
   }
 
   /**
@@ -117,94 +280,177 @@ public class DatabaseUtils {
       List<String> items,
       long listCount,
       boolean firstList,
-      boolean positiveFeedback) {
+      boolean positiveFeedback)
+      throws IllegalStateException {
     if (items == null) {
       return;
     }
     List<String> stemmedItems = StemUtils.stemmedList(items);
-    Entity fracEntity;
-    try {
-      fracEntity = datastore.get(KeyFactory.createKey("Frac-" + stemmedListName, userID));
+    Key fracKey = KeyFactory.createKey("Frac-" + stemmedListName, userID);
+    Entity fracEntity =
+        runInTransaction(
+            datastore,
+            txn -> {
+              Entity existingFracEntity;
+              try {
+                existingFracEntity = datastore.get(txn, fracKey);
+              } catch (EntityNotFoundException e) {
+                existingFracEntity = null;
+              }
+              Entity updatedFracEntity =
+                  updateFracEntity(
+                      existingFracEntity,
+                      fracKey,
+                      stemmedItems,
+                      listCount,
+                      firstList,
+                      positiveFeedback);
+              datastore.put(txn, updatedFracEntity);
+              return updatedFracEntity;
+            });
+    fracEntityUpdated(datastore, stemmedListName, fracEntity);
+  }
+
+  /**
+   * Adds the rates of the given items to a user's fractional entity, or creates the entity if the
+   * user has none.
+   *
+   * @param fracEntity Existing fractional entity of the user, or null if there is none
+   * @param fracKey Key of the user's fractional entity
+   * @param stemmedItems Stemmed items to update the rates of
+   * @param listCount Number of lists the user has made of this type
+   * @param firstList Boolean representing true if updating fractions for the first list of a name
+   *     type
+   * @param positiveFeedback Boolean indicating if items are being added to list or rejected
+   *     recommendations.
+   * @return Updated fractional entity
+   */
+  private static Entity updateFracEntity(
+      Entity fracEntity,
+      Key fracKey,
+      List<String> stemmedItems,
+      long listCount,
+      boolean firstList,
+      boolean positiveFeedback) {
+    if (fracEntity != null) {
       double incrementValue = positiveFeedback ? (firstList ? 1.0 : 0.4) : -1.0;
+      long epoch = getEpoch(fracEntity);
+      EmbeddedEntity itemEpochs = (EmbeddedEntity) fracEntity.getProperty(ITEM_EPOCHS_PROPERTY);
+      if (itemEpochs == null) {
+        itemEpochs = new EmbeddedEntity();
+        fracEntity.setUnindexedProperty(ITEM_EPOCHS_PROPERTY, itemEpochs);
+      }
       for (String stemmedItem : stemmedItems) {
-        Double existingRate = (Double) fracEntity.getProperty(stemmedItem);
-        if (existingRate == null) {
-          fracEntity.setProperty(stemmedItem, incrementValue);
-        } else {
-          fracEntity.setProperty(stemmedItem, existingRate + incrementValue);
-        }
+        double existingRate = getFracWeight(fracEntity, stemmedItem);
+        fracEntity.setProperty(stemmedItem, existingRate + incrementValue);
+        itemEpochs.setProperty(stemmedItem, epoch);
       }
-    } catch (EntityNotFoundException e) {
-      fracEntity = new Entity("Frac-" + stemmedListName, userID);
+    } else {
+      fracEntity = new Entity(fracKey);
       for (String stemmedItem : stemmedItems) {
         fracEntity.setProperty(stemmedItem, 1.0);
       }
-      fracEntity.setProperty("userID", userID);
-      fracEntity.setProperty("listName", stemmedListName);
+      fracEntity.setProperty("userID", fracKey.getName());
+      fracEntity.setProperty("listName", fracKey.getKind().substring("Frac-".length()));
       fracEntity.setProperty("timestamp", System.currentTimeMillis());
     }
     fracEntity.setProperty("count", listCount);
     log.info("frac entity here" + fracEntity);
-    datastore.put(fracEntity);
-    try {
-      RecommendationUtils.updateUserRecommendations(datastore, stemmedListName);
+    return fracEntity;
+  }
 
-    } catch (EntityNotFoundException | IllegalStateException e) {
-      log.error("Recommendation error: " + e);
+  /**
+   * Schedules the list of a committed fractional entity for retraining. If the retrain is deferred
+   * to the task queue, the user is first folded into the trained model of the list so that their
+   * predictions are current until then; a synchronous retrain would overwrite the fold-in at once.
+   */
+  private static void fracEntityUpdated(
+      DatastoreService datastore, String stemmedListName, Entity fracEntity) {
+    RetrainingScheduler scheduler = RetrainingScheduler.getInstance();
+    if (!scheduler.isSynchronous()) {
+      try {
+        Recommender.foldInUser(datastore, stemmedListName, fracEntity);
+      } catch (IllegalStateException e) {
+        log.error("Recommendation error: " + e);
+      }
     }
+    scheduler.markDirty(datastore, stemmedListName);
   }
 
   /**
-   * Retrieves existing fractional entity from datastore and halves all weights to diminish effects
-   * of earlier grocery lists. If no fractional entity of the given name exists, then does nothing.
+   * Decays all weights of a fractional entity by 0.6 to diminish effects of earlier grocery lists.
+   * The decay is applied lazily: only the epoch of the entity is incremented, and each weight is
+   * decayed by the number of epochs since it was last updated when it is read with getFracWeight.
+   * If the user has no fractional entity, then does nothing.
    *
-   * @param datastore Database entity to retrieve data from
-   * @param userID String containing current user's unique ID
-   * @param stemmedListName Stemmed name of the list for the fractional entity to be retrieved.
+   * @param fracEntity Fractional entity to decay, or null if there is none
    */
-  private static void decreaseFracEntityWeights(
-      DatastoreService datastore, String userID, String stemmedListName) {
-    try {
-      Entity fracEntity = datastore.get(KeyFactory.createKey("Frac-" + stemmedListName, userID));
-      for (String item : fracEntity.getProperties().keySet()) {
-        if (AGG_ENTITY_ID_PROPERTIES.contains(item)) {
-          continue;
-        }
-        fracEntity.setProperty(item, ((Double) fracEntity.getProperty(item)) * 0.6);
-      }
-      log.info("decrease frac entity: " + fracEntity);
-      datastore.put(fracEntity);
-    } catch (EntityNotFoundException e) {
+  private static void decreaseFracEntityWeights(Entity fracEntity) {
+    if (fracEntity == null) {
       return;
     }
+    fracEntity.setUnindexedProperty(EPOCH_PROPERTY, getEpoch(fracEntity) + 1);
   }
 
   /**
-   * Records all unique property items for a given list name across all users.
+   * Returns the current weight of an item in a fractional entity, decayed by 0.6 for every list
+   * started since the item was last updated.
    *
-   * @param datastore Database entity to retrieve data from
-   * @param stemmedListName Stemmed name of the list for which we are recording unique items
-   * @param items List of strings containing items to add to list
+   * @param fracEntity Fractional entity of a user
+   * @param item Stemmed item name
+   * @return Decayed weight of the item, or 0.0 if the user has no weight for it
+   */
+  public static double getFracWeight(Entity fracEntity, String item) {
+    Object weight = fracEntity.getProperty(item);
+    if (weight == null) {
+      return 0.0;
+    }
+    long epoch = getEpoch(fracEntity);
+    if (epoch == 0) {
+      return (double) weight;
+    }
+    EmbeddedEntity itemEpochs = (EmbeddedEntity) fracEntity.getProperty(ITEM_EPOCHS_PROPERTY);
+    Object itemEpoch = itemEpochs == null ? null : itemEpochs.getProperty(item);
+    long age = itemEpoch == null ? epoch : epoch - (long) itemEpoch;
+    return (double) weight * Math.pow(DECAY_RATE, age);
+  }
+
+  /** Returns the number of lists decayed into a fractional entity. */
+  private static long getEpoch(Entity fracEntity) {
+    Object epoch = fracEntity.getProperty(EPOCH_PROPERTY);
+    return epoch == null ? 0 : (long) epoch;
+  }
+
+  /**
+   * Runs work in a cross-group transaction and commits it, retrying the whole transaction if it
+   * conflicts with a concurrent one.
+   *
+   * @param datastore Database instance
+   * @param work Reads and writes to run in the transaction
+   * @return Result of the work
    */
-  private static void updateUniqueProperties(
-      DatastoreService datastore, String stemmedListName, List<String> items) {
-    Entity entity;
-    Set<String> updatedUniqueItems;
-    try {
-      entity = datastore.get(KeyFactory.createKey("UniqueItems", stemmedListName));
-      updatedUniqueItems = new HashSet<String>((List<String>) entity.getProperty("items"));
-      updatedUniqueItems.addAll(items);
-    } catch (EntityNotFoundException | NullPointerException e) {
-      entity = new Entity("UniqueItems", stemmedListName);
-      updatedUniqueItems = new HashSet<String>(items);
+  private static <T> T runInTransaction(
+      DatastoreService datastore, Function<Transaction, T> work) throws IllegalStateException {
+    for (int attempt = 0; ; attempt++) {
+      Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+      try {
+        T result = work.apply(txn);
+        txn.commit();
+        return result;
+      } catch (ConcurrentModificationException e) {
+        if (attempt >= MAX_TRANSACTION_RETRIES) {
+          throw new IllegalStateException("Could not commit list update.", e);
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
     }
-    entity.setProperty("items", updatedUniqueItems);
-    datastore.put(entity);
   }
 
   /**
-   * Resets the database to the initial demo status. Only resets categories of: type, frac-type, and
-   * uniqueItems
+   * Resets the database to the initial demo status. Only resets categories of: type and frac-type
    *
    * @param datastore DatastoreService instance to be prepopulated with default values
    */
@@ -231,17 +477,12 @@ public class DatabaseUtils {
           }
           Entity e = gson.fromJson(line, Entity.class);
           Map<String, Value> keyMap = stringToMap(line).get("key").getStructValue().getFieldsMap();
-          String kind = (String) keyMap.get("kind").getStringValue();
-          boolean uniqueItems = kind.equals("UniqueItems");
-          String id = uniqueItems ? categoryName : (String) e.getProperty("userID");
-          Entity entity = new Entity(kind, id);
+          String kind = keyMap.get("kind").getStringValue();
+          Entity entity = new Entity(kind, (String) e.getProperty("userID"));
           entity.setPropertiesFrom(e);
-          if (!uniqueItems) {
-            entity.setProperty(
-                "timestamp", Long.parseLong((String) entity.getProperty("timestamp")));
-            entity.setProperty(
-                "count", Double.valueOf((double) entity.getProperty("count")).longValue());
-          }
+          entity.setProperty("timestamp", Long.parseLong((String) entity.getProperty("timestamp")));
+          entity.setProperty(
+              "count", Double.valueOf((double) entity.getProperty("count")).longValue());
           if (checkExisting) {
             checkExisting = false;
             try {
@@ -261,7 +502,7 @@ public class DatabaseUtils {
       }
       try {
         RecommendationUtils.updateUserRecommendations(datastore, categoryName);
-      } catch (EntityNotFoundException | IllegalStateException e) {
+      } catch (IllegalStateException e) {
         log.error("Recommendation error: " + e);
       }
     }
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Trained user and item factors of a list category, kept after each full training so that users
+ * whose lists change can be folded into the model without retraining every user. Factors are
+ * stored row-major in flat arrays as in FactorizationSolver. A model is never modified after it is
+ * published, so it can be shared between requests.
+ *
+ * <p>Models are persisted as one compact binary encoding of the user IDs, items and factors, split
+ * into FactorModelShard entities of at most SHARD_BYTES each so that large categories stay under
+ * the datastore entity size limit. A FactorModel entity per category, keyed by the stemmed list
+ * name, holds the version of the model and the generation and number of its shards. Shards of a
+ * new model are written under a new random generation before the FactorModel entity is switched to
+ * it, so readers never see a partially written model. Models that would need more than MAX_SHARDS
+ * shards are not persisted, and their category starts from random factors. The next training of
+ * the category starts from the persisted factors instead of a random initialization.
+ *
+ * <p>Each instance caches the models it has read, and reloads a model once the FactorModel entity
+ * points to a different generation, so that users are folded into the latest model of any
+ * instance.
+ */
+public class FactorModel {
+
+  private static Logger log = LoggerFactory.getLogger(FactorModel.class);
+  private static final String KIND = "FactorModel";
+  private static final String SHARD_KIND = "FactorModelShard";
+  private static final String MODEL_PROPERTY = "model";
+  private static final String VERSION_PROPERTY = "version";
+  private static final String GENERATION_PROPERTY = "generation";
+  private static final String NUM_SHARDS_PROPERTY = "shards";
+  private static final String TRAINED_PROPERTY = "trained";
+  private static final int SHARD_BYTES = 900 * 1024;
+  private static final int MAX_SHARDS = 16;
+  private static final Random random = new Random();
+  private static final Map<String, CachedModel> models = new ConcurrentHashMap<>();
+
+  private final int K;
+  private final List<String> userIDs;
+  private final List<String> items;
+  private final Map<String, Integer> userIndices;
+  private final Map<String, Integer> itemIndices;
+  private final double[] userFeatures;
+  private final double[] itemFeatures;
+
+  /** Model read by this instance along with the generation it was stored under. */
+  private static class CachedModel {
+    private final long generation;
+    private final FactorModel model;
+
+    CachedModel(long generation, FactorModel model) {
+      this.generation = generation;
+      this.model = model;
+    }
+  }
+
+  /**
+   * FactorModel constructor.
+   *
+   * @param k Number of latent features
+   * @param userIDs IDs of the users in row order of userFeatures
+   * @param items Stemmed item names in row order of itemFeatures
+   * @param userFeatures Trained user factors, numUsers x K
+   * @param itemFeatures Trained item factors, numItems x K
+   */
+  public FactorModel(
+      int k,
+      List<String> userIDs,
+      List<String> items,
+      double[] userFeatures,
+      double[] itemFeatures) {
+    K = k;
+    this.userIDs = Collections.unmodifiableList(userIDs);
+    this.items = Collections.unmodifiableList(items);
+    this.userFeatures = userFeatures;
+    this.itemFeatures = itemFeatures;
+    userIndices = indexMap(userIDs);
+    itemIndices = indexMap(items);
+  }
+
+  /**
+   * Returns the last trained model of the given list category, loading it from datastore if this
+   * instance has not read the current generation of the model yet.
+   *
+   * @param datastore Datastore instance
+   * @param stemmedListName Stemmed name of the list category
+   * @return FactorModel or null if the category has no persisted model
+   */
+  public static FactorModel get(DatastoreService datastore, String stemmedListName) {
+    Entity entity;
+    try {
+      entity = datastore.get(modelKey(stemmedListName));
+    } catch (EntityNotFoundException e) {
+      models.remove(stemmedListName);
+      return null;
+    }
+    long generation = getLong(entity, GENERATION_PROPERTY);
+    CachedModel cached = models.get(stemmedListName);
+    if (cached != null && cached.generation == generation) {
+      return cached.model;
+    }
+    FactorModel model;
+    try {
+      model = decode(readShards(datastore, entity));
+    } catch (EntityNotFoundException e) {
+      // The shards were replaced by a newer model after the FactorModel entity was read.
+      return cached == null ? null : cached.model;
+    } catch (IOException e) {
+      log.error("Could not decode factor model of " + stemmedListName + ": " + e);
+      return null;
+    }
+    models.put(stemmedListName, new CachedModel(generation, model));
+    return model;
+  }
+
+  /**
+   * Publishes a newly trained model for the given list category, replacing the previous one in
+   * memory and in datastore.
+   *
+   * @param datastore Datastore instance
+   * @param stemmedListName Stemmed name of the list category
+   * @param model Trained model of the category
+   */
+  public static void put(DatastoreService datastore, String stemmedListName, FactorModel model) {
+    long generation = write(datastore, stemmedListName, model);
+    if (generation < 0) {
+      models.remove(stemmedListName);
+    } else {
+      models.put(stemmedListName, new CachedModel(generation, model));
+    }
+  }
+
+  /**
+   * Returns the version of the persisted model of the given list category and the time it was
+   * stored.
+   *
+   * @param datastore Datastore instance
+   * @param stemmedListName Stemmed name of the list category
+   * @return Map of "version", the number of times the model was stored, and "lastTrained", in
+   *     milliseconds since epoch, both 0 if the category has no persisted model
+   */
+  public static Map<String, Long> getStatus(DatastoreService datastore, String stemmedListName) {
+    Map<String, Long> status = new HashMap<>();
+    try {
+      Entity entity = datastore.get(modelKey(stemmedListName));
+      status.put("version", getLong(entity, VERSION_PROPERTY));
+      status.put("lastTrained", getLong(entity, TRAINED_PROPERTY));
+    } catch (EntityNotFoundException e) {
+      status.put("version", 0L);
+      status.put("lastTrained", 0L);
+    }
+    return status;
+  }
+
+  /**
+   * Stores a model in datastore without caching it on this instance. The shards are written first,
+   * then the FactorModel entity is switched to them in a transaction and the shards of the
+   * previous model are deleted. A model too large to persist removes the persisted model instead.
+   *
+   * @param datastore Datastore instance
+   * @param stemmedListName Stemmed name of the list category
+   * @param model Trained model of the category
+   * @return Generation the model was stored under, or -1 if it was not stored
+   */
+  static long write(DatastoreService datastore, String stemmedListName, FactorModel model) {
+    Key key = modelKey(stemmedListName);
+    byte[] bytes = model.encode();
+    int numShards = Math.max(1, (bytes.length + SHARD_BYTES - 1) / SHARD_BYTES);
+    if (numShards > MAX_SHARDS) {
+      log.error(
+          "Factor model of " + stemmedListName + " is too large to persist: " + bytes.length);
+      deletePrevious(datastore, key);
+      return -1;
+    }
+    long generation;
+    synchronized (random) {
+      generation = random.nextLong() & Long.MAX_VALUE;
+    }
+    for (int shard = 0; shard < numShards; shard++) {
+      Entity entity = new Entity(shardKey(key, generation, shard));
+      entity.setUnindexedProperty(
+          MODEL_PROPERTY,
+          new Blob(
+              Arrays.copyOfRange(
+                  bytes, shard * SHARD_BYTES, Math.min(bytes.length, (shard + 1) * SHARD_BYTES))));
+      datastore.put(entity);
+    }
+    Entity previous;
+    Transaction txn = datastore.beginTransaction();
+    try {
+      try {
+        previous = datastore.get(txn, key);
+      } catch (EntityNotFoundException e) {
+        previous = null;
+      }
+      Entity entity = new Entity(key);
+      entity.setUnindexedProperty(
+          VERSION_PROPERTY, previous == null ? 1L : getLong(previous, VERSION_PROPERTY) + 1);
+      entity.setUnindexedProperty(GENERATION_PROPERTY, generation);
+      entity.setUnindexedProperty(NUM_SHARDS_PROPERTY, (long) numShards);
+      entity.setUnindexedProperty(TRAINED_PROPERTY, System.currentTimeMillis());
+      datastore.put(txn, entity);
+      txn.commit();
+    } catch (ConcurrentModificationException e) {
+      log.error("Factor model of " + stemmedListName + " was replaced concurrently: " + e);
+      deleteShards(datastore, key, generation, numShards);
+      return -1;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+    if (previous != null) {
+      deleteShards(
+          datastore,
+          key,
+          getLong(previous, GENERATION_PROPERTY),
+          getLong(previous, NUM_SHARDS_PROPERTY));
+    }
+    return generation;
+  }
+
+  /** Reads and concatenates the shards of the model stored in the given FactorModel entity. */
+  private static byte[] readShards(DatastoreService datastore, Entity entity)
+      throws EntityNotFoundException {
+    long generation = getLong(entity, GENERATION_PROPERTY);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (int shard = 0; shard < getLong(entity, NUM_SHARDS_PROPERTY); shard++) {
+      Entity shardEntity = datastore.get(shardKey(entity.getKey(), generation, shard));
+      byte[] shardBytes = ((Blob) shardEntity.getProperty(MODEL_PROPERTY)).getBytes();
+      bytes.write(shardBytes, 0, shardBytes.length);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Deletes the persisted model of a category along with its shards. */
+  private static void deletePrevious(DatastoreService datastore, Key key) {
+    try {
+      Entity previous = datastore.get(key);
+      datastore.delete(key);
+      deleteShards(
+          datastore,
+          key,
+          getLong(previous, GENERATION_PROPERTY),
+          getLong(previous, NUM_SHARDS_PROPERTY));
+    } catch (EntityNotFoundException e) {
+      // There is no persisted model to delete.
+    }
+  }
+
+  /** Deletes the shards of one generation of a model, ignoring failures. */
+  private static void deleteShards(
+      DatastoreService datastore, Key key, long generation, long numShards) {
+    List<Key> shardKeys = new ArrayList<>();
+    for (int shard = 0; shard < numShards; shard++) {
+      shardKeys.add(shardKey(key, generation, shard));
+    }
+    try {
+      datastore.delete(shardKeys);
+    } catch (RuntimeException e) {
+      log.error("Could not delete factor model shards of " + key + ": " + e);
+    }
+  }
+
+  private static Key modelKey(String stemmedListName) {
+    return KeyFactory.createKey(KIND, stemmedListName);
+  }
+
+  private static Key shardKey(Key modelKey, long generation, int shard) {
+    return KeyFactory.createKey(modelKey, SHARD_KIND, generation + "-" + shard);
+  }
+
+  private static long getLong(Entity entity, String property) {
+    return (long) entity.getProperty(property);
+  }
+
+  /** Drops all models held in memory. Should only be called for testing purposes. */
+  static void clear() {
+    models.clear();
+  }
+
+  public int getK() {
+    return K;
+  }
+
+  public List<String> getUserIDs() {
+    return userIDs;
+  }
+
+  public List<String> getItems() {
+    return items;
+  }
+
+  /**
+   * Returns the row of the given user in the user factors.
+   *
+   * @param userID ID of the user
+   * @return Index of the user or null if the user was not part of the model
+   */
+  public Integer getUserIndex(String userID) {
+    return userIndices.get(userID);
+  }
+
+  /**
+   * Returns the row of the given item in the item factors.
+   *
+   * @param item Stemmed item name
+   * @return Index of the item or null if the item was not part of the model
+   */
+  public Integer getItemIndex(String item) {
+    return itemIndices.get(item);
+  }
+
+  public double[] getUserFeatures() {
+    return userFeatures;
+  }
+
+  public double[] getItemFeatures() {
+    return itemFeatures;
+  }
+
+  /**
+   * Encodes the model as K, the user IDs, the items, then the user and item factors.
+   *
+   * @return Binary encoding of the model
+   */
+  byte[] encode() {
+    ByteArrayOutputStream bytes =
+        new ByteArrayOutputStream(8 * (userFeatures.length + itemFeatures.length) + 64);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(K);
+      writeStrings(out, userIDs);
+      writeStrings(out, items);
+      for (double feature : userFeatures) {
+        out.writeDouble(feature);
+      }
+      for (double feature : itemFeatures) {
+        out.writeDouble(feature);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not encode factor model.", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes a model encoded by encode.
+   *
+   * @param bytes Binary encoding of the model
+   * @return Decoded FactorModel
+   */
+  static FactorModel decode(byte[] bytes) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      int k = in.readInt();
+      List<String> userIDs = readStrings(in);
+      List<String> items = readStrings(in);
+      double[] userFeatures = new double[userIDs.size() * k];
+      for (int i = 0; i < userFeatures.length; i++) {
+        userFeatures[i] = in.readDouble();
+      }
+      double[] itemFeatures = new double[items.size() * k];
+      for (int i = 0; i < itemFeatures.length; i++) {
+        itemFeatures[i] = in.readDouble();
+      }
+      return new FactorModel(k, userIDs, items, userFeatures, itemFeatures);
+    }
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> strings)
+      throws IOException {
+    out.writeInt(strings.size());
+    for (String string : strings) {
+      out.writeUTF(string);
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    List<String> strings = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      strings.add(in.readUTF());
+    }
+    return strings;
+  }
+
+  private static Map<String, Integer> indexMap(List<String> strings) {
+    Map<String, Integer> indices = new HashMap<>();
+    for (int i = 0; i < strings.size(); i++) {
+      indices.put(strings.get(i), i);
+    }
+    return indices;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+/**
+ * Factorizes the observed entries of a sparse user-item matrix into K latent user and item
+ * features. User factors are stored row-major as numUsers x K and item factors as numItems x K.
+ */
+public interface FactorizationSolver {
+
+  /**
+   * Factorizes the observed entries into the given user and item factors, updating the factors in
+   * place, and returns the dense predicted matrix.
+   *
+   * @param data Sparse matrix of observed user (row) and item (column) values
+   * @param userFeatures Initial numUsers x K user factors, row-major
+   * @param itemFeatures Initial numItems x K item factors, row-major
+   * @return Row-major numUsers x numItems array of predicted values
+   */
+  double[] factorize(SparseMatrix data, double[] userFeatures, double[] itemFeatures)
+      throws IllegalStateException;
+
+  /**
+   * Computes the dense predicted matrix userFeatures * itemFeatures^T.
+   *
+   * @param userFeatures numUsers x K user factors, row-major
+   * @param itemFeatures numItems x K item factors, row-major
+   * @param k Number of latent features
+   * @return Row-major numUsers x numItems array of predicted values
+   */
+  static double[] predict(double[] userFeatures, double[] itemFeatures, int k) {
+    int numUsers = userFeatures.length / k;
+    int numItems = itemFeatures.length / k;
+    double[] predictions = new double[numUsers * numItems];
+    for (int row = 0; row < numUsers; row++) {
+      for (int col = 0; col < numItems; col++) {
+        predictions[row * numItems + col] = dot(userFeatures, row * k, itemFeatures, col * k, k);
+      }
+    }
+    return predictions;
+  }
+
+  /** Returns the dot product of the k features starting at the given offsets. */
+  static double dot(
+      double[] userFeatures, int userOffset, double[] itemFeatures, int itemOffset, int k) {
+    double total = 0.0;
+    for (int i = 0; i < k; i++) {
+      total += userFeatures[userOffset + i] * itemFeatures[itemOffset + i];
+    }
+    return total;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sps.recommendations;
+
+import java.util.List;
+
+/**
+ * One list update of a bulk ingest, with the same meaning as the parameters and body of a
+ * /storeInfo request.
+ */
+public class ListEvent {
+  private final String userID;
+  private final String stemmedListName;
+  private final List<String> items;
+  private final boolean newList;
+  private final boolean positiveFeedback;
+
+  /**
+   * ListEvent constructor.
+   *
+   * @param userID String containing the user's unique ID
+   * @param stemmedListName Stemmed name of the list the items are stored into
+   * @param items List of strings containing the items added or rejected
+   * @param newList Indicates whether this is the beginning of a new list
+   * @param positiveFeedback Indicates whether the items are being added (true) or rejected (false)
+   */
+  public ListEvent(
+      String userID,
+      String stemmedListName,
+      List<String> items,
+      boolean newList,
+      boolean positiveFeedback) {
+    this.userID = userID;
+    this.stemmedListName = stemmedListName;
+    this.items = items;
+    this.newList = newList;
+    this.positiveFeedback = positiveFeedback;
+  }
+
+  public String getUserID() {
+    return userID;
+  }
+
+  public String getStemmedListName() {
+    return stemmedListName;
+  }
+
+  public List<String> getItems() {
+    return items;
+  }
+
+  public boolean isNewList() {
+    return newList;
+  }
+
+  public boolean isPositiveFeedback() {
+    return positiveFeedback;
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sps.recommendations;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads list events one at a time from newline-delimited JSON, without holding the whole input in
+ * memory. Each line is an object such as
+ *
+ * <pre>
+ * {"userID": "1", "stemmedListName": "groceri", "items": ["apples"], "newList": true,
+ *     "positiveFeedback": true}
+ * </pre>
+ *
+ * <p>newList defaults to false and positiveFeedback to true. Unknown fields are skipped.
+ */
+public class ListEventReader implements Closeable {
+  private final JsonReader reader;
+
+  /**
+   * ListEventReader constructor.
+   *
+   * @param in Reader of the newline-delimited JSON events
+   */
+  public ListEventReader(Reader in) {
+    reader = new JsonReader(in);
+    reader.setLenient(true);
+  }
+
+  /**
+   * Reads the next event.
+   *
+   * @return Next event, or null at the end of the input
+   * @throws IOException if the input cannot be read or is not a valid event
+   */
+  public ListEvent next() throws IOException {
+    try {
+      return reader.peek() == JsonToken.END_DOCUMENT ? null : readEvent();
+    } catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException("Invalid list event: " + e.getMessage(), e);
+    }
+  }
+
+  private ListEvent readEvent() throws IOException {
+    String userID = null;
+    String stemmedListName = null;
+    List<String> items = new ArrayList<>();
+    boolean newList = false;
+    boolean positiveFeedback = true;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "userID":
+          userID = reader.nextString();
+          break;
+        case "stemmedListName":
+          stemmedListName = reader.nextString();
+          break;
+        case "items":
+          reader.beginArray();
+          while (reader.hasNext()) {
+            items.add(reader.nextString());
+          }
+          reader.endArray();
+          break;
+        case "newList":
+          newList = reader.nextBoolean();
+          break;
+        case "positiveFeedback":
+          positiveFeedback = reader.nextBoolean();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (userID == null || stemmedListName == null) {
+      throw new IOException("List event is missing its userID or stemmedListName.");
+    }
+    return new ListEvent(userID, stemmedListName, items, newList, positiveFeedback);
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One recommendation lookup of a bulk recommendations request: the user and list to recommend
+ * items for, whether to recommend from the user's own past lists ("past") or from similar users
+ * ("general"), how many items to return and which stemmed items to skip.
+ */
+public class RecommendationRequest {
+  public static final String PAST_MODE = "past";
+  public static final String GENERAL_MODE = "general";
+
+  private String userID;
+  private String stemmedListName;
+  private String mode;
+  private int k = 3;
+  private List<String> exclude = Collections.emptyList();
+
+  public String getUserID() {
+    return userID;
+  }
+
+  public void setUserID(String userID) {
+    this.userID = userID;
+  }
+
+  public String getStemmedListName() {
+    return stemmedListName;
+  }
+
+  public void setStemmedListName(String stemmedListName) {
+    this.stemmedListName = stemmedListName;
+  }
+
+  public String getMode() {
+    return mode;
+  }
+
+  public void setMode(String mode) {
+    this.mode = mode;
+  }
+
+  public int getK() {
+    return k;
+  }
+
+  public void setK(int k) {
+    this.k = k;
+  }
+
+  public List<String> getExclude() {
+    return exclude;
+  }
+
+  public void setExclude(List<String> exclude) {
+    this.exclude = exclude == null ? Collections.<String>emptyList() : exclude;
+  }
+
+  /** Returns true if the request has a user, a list and a known mode. */
+  public boolean isValid() {
+    return userID != null
+        && stemmedListName != null
+        && (PAST_MODE.equals(mode) || GENERAL_MODE.equals(mode));
+  }
+}
@@ -20,6 +20,7 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilter;
@@ -30,11 +31,15 @@ import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,7 +64,24 @@ public class RecommendationUtils {
     if ((long) entity.getProperty("count") < 3) {
       throw new IllegalStateException("Not enough past lists to make recommendations.");
     }
-    return getSortedListItems(userID, datastore, entity);
+    return getSortedListItems(userID, datastore, getPastItems(entity));
+  }
+
+  /**
+   * Makes up to k recommendations based on the user's past history of list items, in the same way
+   * as makePastRecommendations. Only the k selected items are unstemmed.
+   *
+   * @param userID String containing current user's unique ID
+   * @param datastore Database entity to retrieve data from
+   * @param stemmedListName Name of the list we are providing item recommendations for.
+   * @param k Maximum number of items to return
+   * @return List of up to k Pairs of items and their frequencies, in descending order of frequency
+   */
+  public static List<Pair<String, Double>> makeTopPastRecommendations(
+      String userID, DatastoreService datastore, String stemmedListName, int k)
+      throws EntityNotFoundException, IllegalStateException {
+    Entity entity = datastore.get(KeyFactory.createKey("Frac-" + stemmedListName, userID));
+    return getTopPastItems(userID, datastore, entity, k, Collections.<String>emptySet());
   }
 
   /**
@@ -81,18 +103,189 @@ public class RecommendationUtils {
     Entity entity =
         datastore.get(KeyFactory.createKey("UserPredictions-" + stemmedListName, userID));
     log.info("found entity: " + entity);
-    return getSortedListItems(userID, datastore, entity);
+    return getSortedListItems(userID, datastore, Recommender.getPredictions(entity));
+  }
+
+  /**
+   * Finds up to k items to recommend to the current user based on interests of the current user in
+   * relation to other users, skipping the excluded items. Only the k selected items are unstemmed.
+   *
+   * @param userID String containing current user's unique ID
+   * @param datastore Database service instance
+   * @param stemmedListName Name of the list we are providing recommendations for.
+   * @param k Maximum number of items to return
+   * @param stemmedExcludedItems Collection of stemmed items that should not be recommended, such as
+   *     the items already in the user's list
+   * @return List of up to k Pairs of items and their predictions, in descending order of prediction
+   */
+  public static List<Pair<String, Double>> makeTopUserRecommendations(
+      String userID,
+      DatastoreService datastore,
+      String stemmedListName,
+      int k,
+      Collection<String> stemmedExcludedItems)
+      throws IllegalStateException, EntityNotFoundException {
+    Entity entity =
+        datastore.get(KeyFactory.createKey("UserPredictions-" + stemmedListName, userID));
+    return getTopListItems(
+        userID,
+        datastore,
+        Recommender.getPredictions(entity),
+        k,
+        new HashSet<String>(stemmedExcludedItems));
+  }
+
+  /**
+   * Makes the recommendations of several users and lists in one call. The Frac- and
+   * UserPredictions- entities of all requests are read with a single batched get, and each request
+   * is then answered as by makeTopPastRecommendations or makeTopUserRecommendations.
+   *
+   * @param datastore Database service instance
+   * @param requests Recommendation lookups to make, all with a valid mode
+   * @return List of the recommendations of each request in request order, empty for requests for
+   *     which no recommendations can be made
+   */
+  public static List<List<Pair<String, Double>>> makeBulkRecommendations(
+      DatastoreService datastore, List<RecommendationRequest> requests) {
+    List<Key> keys = new ArrayList<>(requests.size());
+    for (RecommendationRequest request : requests) {
+      String kind =
+          RecommendationRequest.PAST_MODE.equals(request.getMode())
+              ? "Frac-"
+              : "UserPredictions-";
+      keys.add(KeyFactory.createKey(kind + request.getStemmedListName(), request.getUserID()));
+    }
+    Map<Key, Entity> entities = datastore.get(keys);
+    List<List<Pair<String, Double>>> results = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      RecommendationRequest request = requests.get(i);
+      Entity entity = entities.get(keys.get(i));
+      if (entity == null) {
+        results.add(Collections.<Pair<String, Double>>emptyList());
+        continue;
+      }
+      Set<String> excluded = new HashSet<>(request.getExclude());
+      try {
+        if (RecommendationRequest.PAST_MODE.equals(request.getMode())) {
+          results.add(
+              getTopPastItems(request.getUserID(), datastore, entity, request.getK(), excluded));
+        } else {
+          results.add(
+              getTopListItems(
+                  request.getUserID(),
+                  datastore,
+                  Recommender.getPredictions(entity),
+                  request.getK(),
+                  excluded));
+        }
+      } catch (IllegalStateException | EntityNotFoundException e) {
+        log.info("No recommendations for " + keys.get(i) + ": " + e.getMessage());
+        results.add(Collections.<Pair<String, Double>>emptyList());
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Selects up to k past items of the user's fractional aggregate entity, as long as the user has
+   * made at least 3 lists.
+   *
+   * @param userID String containing current user's unique ID
+   * @param datastore Datastore instance to used to retrieve user's stem conversions.
+   * @param entity Fractional aggregate entity of the current user
+   * @param k Maximum number of items to return
+   * @param stemmedExcludedItems Set of stemmed items to skip
+   * @return List of up to k Pairs of unstemmed items and frequencies, in descending order
+   */
+  private static List<Pair<String, Double>> getTopPastItems(
+      String userID,
+      DatastoreService datastore,
+      Entity entity,
+      int k,
+      Set<String> stemmedExcludedItems)
+      throws IllegalStateException, EntityNotFoundException {
+    if ((long) entity.getProperty("count") < 3) {
+      throw new IllegalStateException("Not enough past lists to make recommendations.");
+    }
+    return getTopListItems(userID, datastore, getPastItems(entity), k, stemmedExcludedItems);
+  }
+
+  /**
+   * Returns the stemmed items and frequencies of a fractional aggregate entity.
+   *
+   * @param entity Fractional aggregate entity of the current user
+   * @return List of Pairs of stemmed items and their frequencies
+   */
+  private static List<Pair<String, Double>> getPastItems(Entity entity) {
+    List<Pair<String, Double>> stemmedItems = new ArrayList<>();
+    for (String item : entity.getProperties().keySet()) {
+      if (DatabaseUtils.AGG_ENTITY_ID_PROPERTIES.contains(item)) {
+        continue;
+      }
+      stemmedItems.add(new Pair<String, Double>(item, DatabaseUtils.getFracWeight(entity, item)));
+    }
+    return stemmedItems;
+  }
+
+  /**
+   * Selects the k highest valued items that are not excluded with a bounded min-heap over the
+   * stemmed items, then unstems only the selected items.
+   *
+   * @param userID String containing current user's unique ID
+   * @param datastore Datastore instance to used to retrieve user's stem conversions.
+   * @param stemmedItems List of Pairs of stemmed items and their values for the current user
+   * @param k Maximum number of items to return
+   * @param stemmedExcludedItems Set of stemmed items to skip
+   * @return List of up to k Pairs of unstemmed items and values, in descending order of value
+   */
+  private static List<Pair<String, Double>> getTopListItems(
+      String userID,
+      DatastoreService datastore,
+      List<Pair<String, Double>> stemmedItems,
+      int k,
+      Set<String> stemmedExcludedItems)
+      throws IllegalStateException, EntityNotFoundException {
+    PriorityQueue<Pair<String, Double>> topItems =
+        new PriorityQueue<>(
+            Math.max(1, k + 1), (p1, p2) -> p1.getValue().compareTo(p2.getValue()));
+    for (Pair<String, Double> item : stemmedItems) {
+      if (stemmedExcludedItems.contains(item.getKey())) {
+        continue;
+      }
+      topItems.add(item);
+      if (topItems.size() > k) {
+        topItems.poll();
+      }
+    }
+    if (topItems.isEmpty()) {
+      throw new IllegalStateException("No items in PQ");
+    }
+    List<Pair<String, Double>> selectedItems = new ArrayList<>(topItems.size());
+    while (!topItems.isEmpty()) {
+      selectedItems.add(topItems.poll());
+    }
+    Map<String, String> words =
+        StemUtils.unstem(
+            userID,
+            datastore,
+            selectedItems.stream().map(Pair::getKey).collect(Collectors.toList()));
+    List<Pair<String, Double>> sortedItems = new ArrayList<>(selectedItems.size());
+    for (Pair<String, Double> item : selectedItems) {
+      sortedItems.add(new Pair<String, Double>(words.get(item.getKey()), item.getValue()));
+    }
+    Collections.reverse(sortedItems);
+    return sortedItems;
   }
 
   /**
-   * Retrieves sorted prediction items and values values from datastore for the given user.
+   * Unstems and sorts the given prediction items and values for the given user.
    *
    * @param userID String containing current user's unique ID
    * @param datastore Datastore instance to used to retrieve user's stem conversions.
-   * @param entity Item prediction entity corresponding to the current user
+   * @param stemmedItems List of Pairs of stemmed items and their values for the current user
    */
   private static List<Pair<String, Double>> getSortedListItems(
-      String userID, DatastoreService datastore, Entity entity)
+      String userID, DatastoreService datastore, List<Pair<String, Double>> stemmedItems)
       throws IllegalStateException, EntityNotFoundException {
     PriorityQueue<Pair<String, Double>> pq =
         new PriorityQueue<>(
@@ -102,13 +295,13 @@ public class RecommendationUtils {
                 return p2.getValue().compareTo(p1.getValue());
               }
             });
-    for (String item : entity.getProperties().keySet()) {
-      if (DatabaseUtils.AGG_ENTITY_ID_PROPERTIES.contains(item)) {
-        continue;
-      }
-      pq.add(
-          new Pair<String, Double>(
-              StemUtils.unstem(userID, datastore, item), (Double) entity.getProperty(item)));
+    Map<String, String> words =
+        StemUtils.unstem(
+            userID,
+            datastore,
+            stemmedItems.stream().map(Pair::getKey).collect(Collectors.toList()));
+    for (Pair<String, Double> item : stemmedItems) {
+      pq.add(new Pair<String, Double>(words.get(item.getKey()), item.getValue()));
     }
     if (pq.isEmpty()) {
       throw new IllegalStateException("No items in PQ");
@@ -127,34 +320,40 @@ public class RecommendationUtils {
    * @param stemmedListName The name of the list to store aggregation information for.
    */
   public static void updateUserRecommendations(DatastoreService datastore, String stemmedListName)
-      throws EntityNotFoundException, IllegalStateException {
-    Set<String> uniqueItems = getUniqueItems(datastore, stemmedListName);
+      throws IllegalStateException {
     List<Entity> allUserEntities = getAllEntities(datastore, "Frac-" + stemmedListName);
     if (allUserEntities.size() < 4) {
       throw new IllegalStateException(
           "Cannot make recommendations when there are less than 3 other users.");
     }
+    Set<String> uniqueItems = getUniqueItems(allUserEntities);
     Recommender rec =
-        new Recommender(
-            (int) Math.ceil(Math.sqrt(Math.min(allUserEntities.size(), uniqueItems.size()))));
+        Recommender.forUsers(
+            (int) Math.ceil(Math.sqrt(Math.min(allUserEntities.size(), uniqueItems.size()))),
+            allUserEntities.size());
     rec.makeRecommendations(datastore, stemmedListName, allUserEntities, uniqueItems);
   }
 
   /**
-   * Throws an error if there is no record of unique items in the database.
+   * Collects the unique items of a list from the fractional entities of its users, so that no
+   * separate record of unique items has to be updated on every stored list.
    *
-   * @param datastore Database instance
-   * @param stemmedListName Stemmed name of the user's current list
-   * @return set of unique items in the given aggregate list database
+   * @param entities Fractional aggregate entities of all users of the list
+   * @return set of unique stemmed items across the given entities
    */
-  private static Set<String> getUniqueItems(DatastoreService datastore, String stemmedListName)
-      throws EntityNotFoundException, IllegalStateException {
-    Entity entity = datastore.get(KeyFactory.createKey("UniqueItems", stemmedListName));
-    Object setItems = entity.getProperty("items");
-    if (setItems == null) {
-      throw new IllegalStateException("Unique Items database has not been initialized with items.");
+  static Set<String> getUniqueItems(List<Entity> entities) throws IllegalStateException {
+    Set<String> uniqueItems = new HashSet<>();
+    for (Entity entity : entities) {
+      for (String property : entity.getProperties().keySet()) {
+        if (!DatabaseUtils.AGG_ENTITY_ID_PROPERTIES.contains(property)) {
+          uniqueItems.add(property);
+        }
+      }
+    }
+    if (uniqueItems.isEmpty()) {
+      throw new IllegalStateException("No items have been stored for this list.");
     }
-    return new HashSet<String>((List<String>) setItems);
+    return uniqueItems;
   }
 
   /**
@@ -21,14 +21,21 @@ import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.KeyFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -78,6 +85,31 @@ public class RecommendationsController {
     return new ResponseEntity(HttpStatus.OK);
   }
 
+  /**
+   * POST method that stores many list events at once, each with the same meaning as a /storeInfo
+   * request. The body is newline-delimited JSON with one event per line, as read by
+   * ListEventReader. Each affected list is retrained once after all events are stored.
+   *
+   * @param body Newline-delimited JSON list events
+   */
+  @RequestMapping(
+      value = "/bulkStoreInfo",
+      method = RequestMethod.POST,
+      consumes = "application/x-ndjson")
+  public ResponseEntity<Map<String, Object>> bulkStoreInfo(InputStream body) {
+    try {
+      int numEvents =
+          DatabaseUtils.storeListEvents(
+              datastore, new InputStreamReader(body, StandardCharsets.UTF_8));
+      log.info("stored " + numEvents + " list events");
+      return new ResponseEntity<>(
+          Collections.<String, Object>singletonMap("events", numEvents), HttpStatus.OK);
+    } catch (IOException e) {
+      log.info("Invalid list events: " + e.getMessage());
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+  }
+
   /**
    * GET method that retrieves past user recommendations.
    *
@@ -116,6 +148,116 @@ public class RecommendationsController {
     }
   }
 
+  /**
+   * GET method that retrieves the top past user recommendations.
+   *
+   * @param userID String containing current user's unique ID
+   * @param stemmedListName Stemmed name of the list to provide recommendations for
+   * @param k Maximum number of recommendations to return
+   */
+  @GetMapping("/topPastUserRecs")
+  public List<Pair<String, Double>> topPastUserRecs(
+      @RequestParam(value = "userID") String userID,
+      @RequestParam(value = "stemmedListName") String stemmedListName,
+      @RequestParam(value = "k", defaultValue = "3") int k) {
+    try {
+      return RecommendationUtils.makeTopPastRecommendations(userID, datastore, stemmedListName, k);
+    } catch (IllegalStateException | EntityNotFoundException e) {
+      log.info("No past user recs: " + e.getMessage());
+      return Collections.EMPTY_LIST;
+    }
+  }
+
+  /**
+   * GET method that retrieves the top general user recommendations that are not excluded.
+   *
+   * @param userID String containing current user's unique ID
+   * @param stemmedListName Stemmed name of the list to provide recommendations for
+   * @param k Maximum number of recommendations to return
+   * @param exclude Stemmed items that should not be recommended, such as the current list items
+   */
+  @GetMapping("/topGeneralUserRecs")
+  public List<Pair<String, Double>> topGeneralUserRecs(
+      @RequestParam(value = "userID") String userID,
+      @RequestParam(value = "stemmedListName") String stemmedListName,
+      @RequestParam(value = "k", defaultValue = "3") int k,
+      @RequestParam(value = "exclude", required = false) List<String> exclude) {
+    try {
+      return RecommendationUtils.makeTopUserRecommendations(
+          userID,
+          datastore,
+          stemmedListName,
+          k,
+          exclude == null ? Collections.<String>emptyList() : exclude);
+    } catch (IllegalStateException | EntityNotFoundException e) {
+      log.info("No general user recs: " + e.getMessage());
+      return Collections.EMPTY_LIST;
+    }
+  }
+
+  /**
+   * POST method that retrieves the recommendations of several users and lists in one call.
+   *
+   * @param requests Recommendation lookups, each with a userID, stemmedListName, mode ("past" or
+   *     "general") and optional k and excluded stemmed items
+   * @return Recommendations of each lookup in request order, empty for lookups without any
+   */
+  @RequestMapping(
+      value = "/bulkUserRecs",
+      method = RequestMethod.POST,
+      consumes = "application/json")
+  public ResponseEntity<List<List<Pair<String, Double>>>> bulkUserRecs(
+      @RequestBody List<RecommendationRequest> requests) {
+    for (RecommendationRequest request : requests) {
+      if (!request.isValid()) {
+        return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+      }
+    }
+    log.info("making " + requests.size() + " bulk user recs");
+    return new ResponseEntity<>(
+        RecommendationUtils.makeBulkRecommendations(datastore, requests), HttpStatus.OK);
+  }
+
+  /**
+   * GET method that retrieves the training status of the recommendations model of a list.
+   *
+   * @param stemmedListName Stemmed name of the list to get the model status of
+   */
+  @GetMapping("/modelStatus")
+  public Map<String, Object> modelStatus(
+      @RequestParam(value = "stemmedListName") String stemmedListName) {
+    Map<String, Long> model = FactorModel.getStatus(datastore, stemmedListName);
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("version", model.get("version"));
+    status.put("lastTrained", model.get("lastTrained"));
+    status.put(
+        "dirty",
+        RetrainingScheduler.getInstance().isDirty(stemmedListName, model.get("lastTrained")));
+    return status;
+  }
+
+  /**
+   * POST method called by the retraining task queue to retrain the model of a list. Requests that
+   * do not come from the task queue are rejected. Only transient failures, such as datastore
+   * timeouts, return an error so that the task is retried.
+   *
+   * @param queueName Name of the task queue, set by App Engine on task requests only
+   * @param stemmedListName Stemmed name of the list to retrain
+   */
+  @RequestMapping(value = RetrainingScheduler.RETRAIN_PATH, method = RequestMethod.POST)
+  public ResponseEntity retrain(
+      @RequestHeader(value = "X-AppEngine-QueueName", required = false) String queueName,
+      @RequestParam(value = RetrainingScheduler.LIST_NAME_PARAM) String stemmedListName) {
+    if (queueName == null) {
+      return new ResponseEntity(HttpStatus.FORBIDDEN);
+    }
+    log.info("retraining " + stemmedListName);
+    if (!RetrainingScheduler.getInstance().retrain(datastore, stemmedListName)) {
+      return new ResponseEntity(HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+    return new ResponseEntity(HttpStatus.OK);
+  }
+
   /**
    * POST method that resets database to default demo values
    *
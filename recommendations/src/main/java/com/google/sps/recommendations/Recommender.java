@@ -16,13 +16,20 @@
  
 package com.google.sps.recommendations;
 
+import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
 import org.ejml.simple.SimpleMatrix;
@@ -34,20 +41,44 @@ public class Recommender {
   private static Logger log = LoggerFactory.getLogger(Recommender.class);
 
   private int K;
-  private final int STEPS = 10000;
-  private final double ALPHA_START = 0.1;
-  private final double BETA = 0.02;
-  private final double DELTA = 0.01;
+  private static final int STEPS = 10000;
+  private static final double ALPHA_START = 0.1;
+  private static final double BETA = 0.02;
+  private static final double DELTA = 0.01;
+  private static final int CONVERGENCE_CHECK_INTERVAL = 50;
+  private static final int PATIENCE = 3;
+  private static final int ALS_ITERATIONS = 30;
+  private static final int ALS_MIN_USERS = 1000;
+  private static final int WARM_START_MIN_USERS = 100;
+  private static final int TOP_N_PREDICTIONS = 50;
+  private static final int MAX_PUT_BATCH_SIZE = 500;
+  private static final String PREDICTIONS_PROPERTY = "predictions";
+  private FactorizationSolver solver;
   private List<String> itemIndexMapping;
+  private Map<String, Integer> itemIndices;
   private Map<Integer, String> userIDIndexMapping;
+  private double[] userFactors;
+  private double[] itemFactors;
 
  /**
-  * Recommender constructor with a custom number of latent features.
+  * Recommender constructor with a custom number of latent features and factorization solver.
   *
   * @param k Number of latent features to use in matrix factorization
+  * @param solver Solver used to factorize the user-item matrix into k latent features
   */
-  public Recommender(int k) {
+  public Recommender(int k, FactorizationSolver solver) {
     K = k;
+    this.solver = solver;
+  }
+
+ /**
+  * Recommender constructor with a custom number of latent features that factorizes with SGD.
+  *
+  * @param k Number of latent features to use in matrix factorization
+  */
+  public Recommender(int k) {
+    this(
+        k, new SgdFactorizer(k, STEPS, ALPHA_START, BETA, CONVERGENCE_CHECK_INTERVAL, PATIENCE));
   }
 
  /** 
@@ -58,7 +89,26 @@ public class Recommender {
   }
 
   /**
-   * Generates recommendations from given datastore entries for the given user.
+   * Creates a recommender whose solver suits the number of users: sequential SGD for small lists,
+   * and parallel ALS, which converges in far fewer iterations, once there are ALS_MIN_USERS users.
+   *
+   * @param k Number of latent features to use in matrix factorization
+   * @param numUsers Number of users in the user-item matrix
+   * @return Recommender for the given number of users
+   */
+  public static Recommender forUsers(int k, int numUsers) {
+    if (numUsers < ALS_MIN_USERS) {
+      return new Recommender(k);
+    }
+    return new Recommender(k, new AlsFactorizer(k, ALS_ITERATIONS, BETA));
+  }
+
+  /**
+   * Generates recommendations from given datastore entries for the given user. Once a category has
+   * WARM_START_MIN_USERS users, training starts from the factors of its previous model and only
+   * users and items that are new since then are initialized randomly. Smaller categories train in
+   * milliseconds and their predictions for rarely listed items depend on the initialization, so
+   * they always start from the same random factors.
    *
    * @param datastore Datastore instance
    * @param stemmedListName stemmed name of the list
@@ -74,57 +124,159 @@ public class Recommender {
       List<Entity> entities,
       Set<String> uniqueItems) 
       throws IllegalStateException {
-    SimpleMatrix dataMatrix = createMatrixFromDatabaseEntities(entities, uniqueItems);
+    SparseMatrix dataMatrix = createMatrixFromDatabaseEntities(entities, uniqueItems);
     SimpleMatrix userFeatures = SimpleMatrix.random_DDRM​(dataMatrix.numRows(), K, -2.0, 2.0, new Random(1));
     SimpleMatrix itemFeatures = SimpleMatrix.random_DDRM​(K, dataMatrix.numCols(), -2.0, 2.0, new Random(1));
+    if (dataMatrix.numRows() >= WARM_START_MIN_USERS) {
+      warmStart(FactorModel.get(datastore, stemmedListName), userFeatures, itemFeatures);
+    }
     SimpleMatrix predictedResults = matrixFactorization(dataMatrix, userFeatures, itemFeatures);
-    savePredictions(datastore, stemmedListName, predictedResults);
+    savePredictions(datastore, stemmedListName, dataMatrix, predictedResults);
+    List<String> userIDs = new ArrayList<>();
+    for (int i = 0; i < dataMatrix.numRows(); i++) {
+      userIDs.add(userIDIndexMapping.get(i));
+    }
+    FactorModel.put(
+        datastore,
+        stemmedListName,
+        new FactorModel(K, userIDs, itemIndexMapping, userFactors, itemFactors));
+  }
+
+  /**
+   * Overwrites the initial factors of every user and item that is part of the previous model with
+   * their trained factors. Nothing is reused if the previous model has a different number of
+   * latent features.
+   *
+   * @param previous Previous model of the list category, or null if there is none
+   * @param userFeatures Initial user factors, numUsers x K
+   * @param itemFeatures Initial item factors, K x numItems
+   */
+  private void warmStart(
+      FactorModel previous, SimpleMatrix userFeatures, SimpleMatrix itemFeatures) {
+    if (previous == null || previous.getK() != K) {
+      return;
+    }
+    double[] previousUsers = previous.getUserFeatures();
+    for (int row = 0; row < userFeatures.numRows(); row++) {
+      Integer index = previous.getUserIndex(userIDIndexMapping.get(row));
+      if (index == null) {
+        continue;
+      }
+      for (int k = 0; k < K; k++) {
+        userFeatures.set(row, k, previousUsers[index * K + k]);
+      }
+    }
+    double[] previousItems = previous.getItemFeatures();
+    for (int col = 0; col < itemFeatures.numCols(); col++) {
+      Integer index = previous.getItemIndex(itemIndexMapping.get(col));
+      if (index == null) {
+        continue;
+      }
+      for (int k = 0; k < K; k++) {
+        itemFeatures.set(k, col, previousItems[index * K + k]);
+      }
+    }
   }
 
   /**
-   * Converts database entities into fully populated data matrix.
+   * Folds a single user's updated fractional aggregate into the last trained model of the list
+   * category: the user's factors are solved against the trained item factors, which stay fixed,
+   * and only that user's predictions are stored. Items the model was not trained on are ignored
+   * until the next full retrain.
+   *
+   * @param datastore Datastore instance
+   * @param stemmedListName Stemmed name of the list
+   * @param fracEntity Updated fractional aggregate entity of the user
+   * @return True if the user's predictions were updated, false if the category has no trained
+   *     model or the user has no items in it
+   */
+  public static boolean foldInUser(
+      DatastoreService datastore, String stemmedListName, Entity fracEntity)
+      throws IllegalStateException {
+    FactorModel model = FactorModel.get(datastore, stemmedListName);
+    if (model == null) {
+      return false;
+    }
+    List<String> items = model.getItems();
+    SparseMatrix.Builder builder = new SparseMatrix.Builder(1, items.size(), DELTA);
+    for (String item : fracEntity.getProperties().keySet()) {
+      Integer col = model.getItemIndex(item);
+      if (col == null || DatabaseUtils.AGG_ENTITY_ID_PROPERTIES.contains(item)) {
+        continue;
+      }
+      builder.add(col, DatabaseUtils.getFracWeight(fracEntity, item));
+    }
+    builder.endRow();
+    SparseMatrix userRow = builder.build();
+    if (userRow.nonZeros() == 0) {
+      return false;
+    }
+    int k = model.getK();
+    double[] userFeatures =
+        new AlsFactorizer(k, 1, BETA).solveUsers(userRow, model.getItemFeatures());
+    double[] predictions = FactorizationSolver.predict(userFeatures, model.getItemFeatures(), k);
+    String userID = (String) fracEntity.getProperty("userID");
+    datastore.put(
+        makePredictionEntity(stemmedListName, userID, items, predictions, 0, userRow, 0));
+    log.info("Stored folded in predictions of user " + userID);
+    return true;
+  }
+
+  /**
+   * Converts database entities into a sparse data matrix in a single pass over the entities, in
+   * O(users x items per user) time.
    *
    * @param userEntity Fractional aggregate entity of the current user
    * @param entities List of fractional aggregate entities containing all entities except the
    *     current user's in the database.
    * @param uniqueItems Set of all unique property items in all entities.
-   * @return Matrix containing values for each user as rows, items as columns, and fractional number
-   *     of times an item has appeared on the user's list as values. 0.0 if user never listed an
-   *     item.
+   * @return Sparse matrix containing values for each user as rows, items as columns, and
+   *     fractional number of times an item has appeared on the user's list as values. Only values
+   *     that differ from 0.0 by more than DELTA are stored.
    */
-  SimpleMatrix createMatrixFromDatabaseEntities(List<Entity> entities, Set<String> uniqueItems) {
+  SparseMatrix createMatrixFromDatabaseEntities(List<Entity> entities, Set<String> uniqueItems) {
     itemIndexMapping = new ArrayList<String>(uniqueItems);
     userIDIndexMapping = new HashMap<>();
     Collections.sort(itemIndexMapping);
-    double[][] userItemData = new double[entities.size()][uniqueItems.size()];
+    itemIndices = new HashMap<>(2 * itemIndexMapping.size());
+    for (int i = 0; i < itemIndexMapping.size(); i++) {
+      itemIndices.put(itemIndexMapping.get(i), i);
+    }
+    SparseMatrix.Builder builder =
+        new SparseMatrix.Builder(entities.size(), uniqueItems.size(), DELTA);
     for (int i = 0; i < entities.size(); i++) {
-      addEntity(userItemData, entities.get(i), i);
+      addEntity(builder, entities.get(i), i);
     }
-    return new SimpleMatrix(userItemData);
+    return builder.build();
   }
 
   /**
-   * Adds a single entity to a row of the data array.
+   * Adds a single entity as the next row of the sparse matrix. Item columns are looked up in a
+   * hash map, and properties that are not unique items are skipped.
    *
-   * @param userItemData double array containing unfilled matrix values
+   * @param builder Builder of the sparse data matrix
    * @param e Entity to fill the given row of the matrix
    * @param row The row to be for corresponding entity.
    */
-  private void addEntity(double[][] userItemData, Entity e, int row) {
+  private void addEntity(SparseMatrix.Builder builder, Entity e, int row) {
     userIDIndexMapping.put(row, (String) e.getProperty("userID"));
     for (String item : e.getProperties().keySet()) {
-      if (DatabaseUtils.AGG_ENTITY_ID_PROPERTIES.contains(item)) {
+      Integer col = itemIndices.get(item);
+      if (col == null || DatabaseUtils.AGG_ENTITY_ID_PROPERTIES.contains(item)) {
         continue;
       }
-      userItemData[row][itemIndexMapping.indexOf(item)] = (double) e.getProperty(item);
+      builder.add(col, DatabaseUtils.getFracWeight(e, item));
     }
+    builder.endRow();
   }
 
   /**
-   * Uses matrix factorization to compute the predicted result matrix by continuously multiplying
-   * userFeatures and itemFeatures matrices. Based on the error between feature matrix product and
-   * given data matrix, it increments/adjusts the feature matrices and tries again until error
-   * reaches threshold of 0.001 or STEPS iterations has been completed.
+   * Uses matrix factorization to compute the predicted result matrix from the given guesses for
+   * userFeatures and itemFeatures. With the default SGD solver, it increments/adjusts the feature
+   * matrices based on the error between their product and the data matrix until the error reaches
+   * threshold of 0.001, stops improving for PATIENCE checks made every CONVERGENCE_CHECK_INTERVAL
+   * iterations, or STEPS iterations has been completed. Only entries of the data matrix that
+   * differ from 0.0 by more than DELTA are treated as observed.
    *
    * @param dataMatrix Matrix with real data values for user list item history.
    * @param userFeatures Matrix with guesses for how much each user is affiliated with the K
@@ -134,99 +286,180 @@ public class Recommender {
    * @return Matrix with the final best prediction for userFeatures * itemFeatures
    */
   SimpleMatrix matrixFactorization(
-      SimpleMatrix dataMatrix, SimpleMatrix userFeatures, SimpleMatrix itemFeatures) 
+      SimpleMatrix dataMatrix, SimpleMatrix userFeatures, SimpleMatrix itemFeatures)
       throws IllegalStateException {
-    log.info("Input matrix: " + dataMatrix);
-    for (int step = 0; step < STEPS; step++) {
-      double updatedLearningRate = Math.max(ALPHA_START / (Math.sqrt(step + 1)), 0.005);
-      for (int row = 0; row < dataMatrix.numRows(); row++) {
-        for (int col = 0; col < dataMatrix.numCols(); col++) {
-          double element = dataMatrix.get(row, col);
-          if (Math.abs(element - 0.0) > DELTA) {
-            double error =
-                element
-                    - userFeatures
-                        .extractVector(true, row)
-                        .dot(itemFeatures.extractVector(false, col));
-            for (int k = 0; k < K; k++) {
-              double userFeatures_ik = userFeatures.get(row, k);
-              double itemFeatures_kj = itemFeatures.get(k, col);
-              userFeatures.set(
-                  row, k, increment(userFeatures_ik, itemFeatures_kj, error, updatedLearningRate));
-              itemFeatures.set(
-                  k, col, increment(itemFeatures_kj, userFeatures_ik, error, updatedLearningRate));
-            }
-          }
-        }
-      }
-      SimpleMatrix estimatedData = userFeatures.mult(itemFeatures);
-      if (estimatedData.hasUncountable()) {
-        log.error("Failure at step: " + step);
-        log.error("User feature matrix: " + userFeatures);
-        log.error("Item feature matrix: " + itemFeatures);
-        throw new IllegalStateException("NaN error in matrix factorization.");
-      }
-      double totalError = 0.0;
-      for (int row = 0; row < dataMatrix.numRows(); row++) {
-        for (int col = 0; col < dataMatrix.numCols(); col++) {
-          double element = dataMatrix.get(row, col);
-          if (Math.abs(element - 0.0) > DELTA) {
-            totalError +=
-                Math.pow(
-                    element
-                        - userFeatures
-                            .extractVector(true, row)
-                            .dot(itemFeatures.extractVector(false, col)),
-                    2);
-            for (int k = 0; k < K; k++) {
-              totalError +=
-                  (BETA / 2)
-                      * (Math.pow(userFeatures.get(row, k), 2)
-                          + Math.pow(itemFeatures.get(k, col), 2));
-            }
-          }
-        }
-      }
-      if (totalError < 0.001) {
-        return estimatedData;
-      }
-    }
-    log.info("Return matrix: " + userFeatures.mult(itemFeatures));
-    return userFeatures.mult(itemFeatures);
+    return matrixFactorization(
+        SparseMatrix.fromDense(dataMatrix, DELTA), userFeatures, itemFeatures);
   }
 
   /**
-   * Increments each element based on the error at that element.
+   * Uses matrix factorization to compute the predicted result matrix from the observed entries of
+   * the sparse data matrix. The trained flat factors are kept so that they can be published as
+   * the category's FactorModel.
    *
-   * @param e1 The value being adjusted.
-   * @param e2 Corresponding value in the other matrix
-   * @param error Error between the product at this value and the real data matrix at the
-   *     corresponding value.
-   * @param alpha Current alpha learning rate
-   * @return Double representing the incremental adjustment for e1.
+   * @param dataMatrix Sparse matrix with real data values for user list item history.
+   * @param userFeatures Matrix with guesses for how much each user is affiliated with the K
+   *     features
+   * @param itemFeatures Matrix with guesses for how much each item is affiliated with the K
+   *     features
+   * @return Matrix with the final best prediction for userFeatures * itemFeatures
    */
-  private double increment(double e1, double e2, double error, double alpha) {
-    return e1 + alpha * (2 * error * e2 - BETA * e1);
+  SimpleMatrix matrixFactorization(
+      SparseMatrix dataMatrix, SimpleMatrix userFeatures, SimpleMatrix itemFeatures)
+      throws IllegalStateException {
+    log.info("Input matrix: " + dataMatrix);
+    int numUsers = dataMatrix.numRows();
+    int numItems = dataMatrix.numCols();
+    userFactors = new double[numUsers * K];
+    itemFactors = new double[numItems * K];
+    for (int k = 0; k < K; k++) {
+      for (int row = 0; row < numUsers; row++) {
+        userFactors[row * K + k] = userFeatures.get(row, k);
+      }
+      for (int col = 0; col < numItems; col++) {
+        itemFactors[col * K + k] = itemFeatures.get(k, col);
+      }
+    }
+    double[] predictions = solver.factorize(dataMatrix, userFactors, itemFactors);
+    SimpleMatrix predictedResults = new SimpleMatrix(numUsers, numItems, true, predictions);
+    log.info("Return matrix: " + predictedResults);
+    return predictedResults;
   }
 
   /**
-   * Stores results of matrix factorization into database.
+   * Stores results of matrix factorization into database, putting the users' prediction entities
+   * in batches of at most MAX_PUT_BATCH_SIZE entities.
    *
    * @param datastore Datastore instance
    * @param stemmedListName Stemmed name of the list that predictions were calculated for
+   * @param dataMatrix Sparse data matrix the predictions were calculated from
    * @param predictedResults Matrix result of matrix factorization.
-   * @return List of Pairs where each pair contains the item name and the expected frequency that
-   *     the user would add an item to their list.
    */
   private void savePredictions(
-      DatastoreService datastore, String stemmedListName, SimpleMatrix predictedResults) {
+      DatastoreService datastore,
+      String stemmedListName,
+      SparseMatrix dataMatrix,
+      SimpleMatrix predictedResults) {
+    double[] predictions = predictedResults.getDDRM().getData();
+    int numItems = predictedResults.numCols();
+    List<Entity> batch = new ArrayList<>(MAX_PUT_BATCH_SIZE);
     for (int i = 0; i < predictedResults.numRows(); i++) {
-      Entity entity = new Entity("UserPredictions-" + stemmedListName, userIDIndexMapping.get(i));
-      for (int j = 0; j < itemIndexMapping.size(); j++) {
-        entity.setProperty(itemIndexMapping.get(j), predictedResults.get(i, j));
+      batch.add(
+          makePredictionEntity(
+              stemmedListName,
+              userIDIndexMapping.get(i),
+              itemIndexMapping,
+              predictions,
+              i * numItems,
+              dataMatrix,
+              i));
+      if (batch.size() == MAX_PUT_BATCH_SIZE) {
+        datastore.put(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      datastore.put(batch);
+    }
+    log.info("Stored predictions of " + predictedResults.numRows() + " users");
+  }
+
+  /**
+   * Creates the prediction entity of a single user, holding only the user's TOP_N_PREDICTIONS
+   * highest predicted items among the items the user does not have yet. Items with an observed
+   * entry in the user's row of the data matrix are skipped, since their reconstructed predictions
+   * are usually the highest. The items and predictions are encoded, in descending order of
+   * prediction, into a single unindexed blob property.
+   *
+   * @param stemmedListName Stemmed name of the list that predictions were calculated for
+   * @param userID ID of the user
+   * @param items Stemmed item names in column order of the predictions
+   * @param predictions Array holding the user's predictions for all items
+   * @param offset Index of the user's prediction for the first item
+   * @param dataMatrix Sparse data matrix with the items as columns
+   * @param row Row of the user in the data matrix
+   * @return UserPredictions entity of the user
+   */
+  static Entity makePredictionEntity(
+      String stemmedListName,
+      String userID,
+      List<String> items,
+      double[] predictions,
+      int offset,
+      SparseMatrix dataMatrix,
+      int row) {
+    PriorityQueue<Integer> topItems =
+        new PriorityQueue<>(
+            TOP_N_PREDICTIONS + 1,
+            (i1, i2) -> Double.compare(predictions[offset + i1], predictions[offset + i2]));
+    int entry = dataMatrix.rowStart(row);
+    for (int j = 0; j < items.size(); j++) {
+      if (entry < dataMatrix.rowEnd(row) && dataMatrix.col(entry) == j) {
+        entry++;
+        continue;
+      }
+      topItems.add(j);
+      if (topItems.size() > TOP_N_PREDICTIONS) {
+        topItems.poll();
+      }
+    }
+    int[] selected = new int[topItems.size()];
+    for (int i = selected.length - 1; i >= 0; i--) {
+      selected[i] = topItems.poll();
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * selected.length + 4);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(selected.length);
+      for (int j : selected) {
+        out.writeUTF(items.get(j));
+        out.writeFloat((float) predictions[offset + j]);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not encode predictions.", e);
+    }
+    Entity entity = new Entity("UserPredictions-" + stemmedListName, userID);
+    entity.setUnindexedProperty(PREDICTIONS_PROPERTY, new Blob(bytes.toByteArray()));
+    return entity;
+  }
+
+  /**
+   * Decodes the predictions stored in a UserPredictions entity. Entities written before
+   * predictions were stored as a blob hold one property per item, and are read from those until
+   * their category is retrained.
+   *
+   * @param entity UserPredictions entity of a user
+   * @return List of Pairs of stemmed item names and predictions, in descending order of prediction
+   */
+  public static List<Pair<String, Double>> getPredictions(Entity entity)
+      throws IllegalStateException {
+    Blob blob = (Blob) entity.getProperty(PREDICTIONS_PROPERTY);
+    if (blob == null) {
+      return getLegacyPredictions(entity);
+    }
+    byte[] bytes = blob.getBytes();
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      int size = in.readInt();
+      List<Pair<String, Double>> predictions = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        String item = in.readUTF();
+        predictions.add(new Pair<String, Double>(item, (double) in.readFloat()));
+      }
+      return predictions;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not decode predictions of " + entity.getKey(), e);
+    }
+  }
+
+  /** Reads the per-item prediction properties of a legacy UserPredictions entity. */
+  private static List<Pair<String, Double>> getLegacyPredictions(Entity entity) {
+    List<Pair<String, Double>> predictions = new ArrayList<>();
+    for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+      if (!DatabaseUtils.AGG_ENTITY_ID_PROPERTIES.contains(property.getKey())
+          && property.getValue() instanceof Double) {
+        predictions.add(new Pair<String, Double>(property.getKey(), (Double) property.getValue()));
       }
-      log.info("Stored prediction entity: " + entity);
-      datastore.put(entity);
     }
+    predictions.sort((p1, p2) -> p2.getValue().compareTo(p1.getValue()));
+    return predictions;
   }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules retraining of list category models on the "retrain" push task queue, so that write
+ * requests do not wait for training. Marking a category dirty adds a task named after the category
+ * and the current retraining interval; since task names are unique, further writes in the same
+ * interval add nothing, a burst of writes results in a single retrain and each category is
+ * retrained at most once per interval. A task runs once its interval has ended, and at least the
+ * debounce period after it was added, by posting to RETRAIN_PATH on any instance.
+ *
+ * <p>The debounce period and interval are set by the retraining.debounceMillis and
+ * retraining.intervalMillis system properties. Outside of production App Engine (local runs and
+ * tests), and if a task cannot be added, categories are retrained synchronously when they are
+ * marked dirty.
+ */
+public class RetrainingScheduler {
+
+  private static Logger log = LoggerFactory.getLogger(RetrainingScheduler.class);
+  public static final String QUEUE_NAME = "retrain";
+  public static final String RETRAIN_PATH = "/retrain";
+  public static final String LIST_NAME_PARAM = "stemmedListName";
+  private static final long DEBOUNCE_MILLIS = Long.getLong("retraining.debounceMillis", 2000);
+  private static final long INTERVAL_MILLIS = Long.getLong("retraining.intervalMillis", 30000);
+  private static RetrainingScheduler instance =
+      new RetrainingScheduler(
+          RecommendationUtils::updateUserRecommendations,
+          DEBOUNCE_MILLIS,
+          INTERVAL_MILLIS,
+          SystemProperty.environment.value() != SystemProperty.Environment.Value.Production);
+
+  /** Retrains the model of a single list category. */
+  interface Trainer {
+    void train(DatastoreService datastore, String stemmedListName)
+        throws EntityNotFoundException, IllegalStateException;
+  }
+
+  private final Trainer trainer;
+  private final long debounceMillis;
+  private final long intervalMillis;
+  private final Map<String, Long> lastMarkedMillis = new ConcurrentHashMap<>();
+  private volatile boolean synchronous;
+
+  /**
+   * RetrainingScheduler constructor.
+   *
+   * @param trainer Trainer used to retrain a category
+   * @param debounceMillis Minimum time between marking a category dirty and retraining it
+   * @param intervalMillis Length of the intervals in which a category is retrained at most once
+   * @param synchronous True to retrain on the calling thread whenever a category is marked dirty
+   */
+  RetrainingScheduler(
+      Trainer trainer, long debounceMillis, long intervalMillis, boolean synchronous) {
+    this.trainer = trainer;
+    this.debounceMillis = debounceMillis;
+    this.intervalMillis = intervalMillis;
+    this.synchronous = synchronous;
+  }
+
+  /** Returns the shared scheduler used by the recommendations API. */
+  public static RetrainingScheduler getInstance() {
+    return instance;
+  }
+
+  /**
+   * Sets whether categories are retrained on the calling thread as soon as they are marked dirty.
+   *
+   * @param synchronous True to retrain synchronously, false to retrain from the task queue
+   */
+  public void setSynchronous(boolean synchronous) {
+    this.synchronous = synchronous;
+  }
+
+  /**
+   * Returns true if categories are retrained on the calling thread when they are marked dirty.
+   *
+   * @return True if retraining is synchronous
+   */
+  public boolean isSynchronous() {
+    return synchronous;
+  }
+
+  /**
+   * Marks the model of a list category as out of date and schedules it to be retrained.
+   *
+   * @param datastore Datastore instance to retrain the category from
+   * @param stemmedListName Stemmed name of the list category
+   * @return True if the retrain was deferred to the task queue, false if it ran synchronously
+   */
+  public boolean markDirty(DatastoreService datastore, String stemmedListName) {
+    long now = System.currentTimeMillis();
+    lastMarkedMillis.put(stemmedListName, now);
+    if (!synchronous && schedule(stemmedListName, now)) {
+      return true;
+    }
+    retrain(datastore, stemmedListName);
+    return false;
+  }
+
+  /**
+   * Retrains the model of a list category. Called by the retraining task. Failures that would
+   * happen again on every attempt, such as a category with too few users, are only logged.
+   *
+   * @param datastore Datastore instance to retrain the category from
+   * @param stemmedListName Stemmed name of the list category
+   * @return False if retraining failed transiently and should be retried, true otherwise
+   */
+  public boolean retrain(DatastoreService datastore, String stemmedListName) {
+    try {
+      trainer.train(datastore, stemmedListName);
+      return true;
+    } catch (DatastoreTimeoutException | ConcurrentModificationException e) {
+      log.warn("Could not retrain " + stemmedListName + ", will retry: " + e);
+      return false;
+    } catch (EntityNotFoundException | RuntimeException e) {
+      log.error("Recommendation error: " + e);
+      return true;
+    }
+  }
+
+  /**
+   * Returns true if this instance marked the given category dirty after its model was last
+   * trained.
+   *
+   * @param stemmedListName Stemmed name of the list category
+   * @param lastTrainedMillis Time the model of the category was last trained
+   * @return True if the category is waiting to be retrained
+   */
+  public boolean isDirty(String stemmedListName, long lastTrainedMillis) {
+    Long marked = lastMarkedMillis.get(stemmedListName);
+    return marked != null && marked >= lastTrainedMillis;
+  }
+
+  /**
+   * Returns the name of the retraining task of a category for the interval containing the given
+   * time. Task names may only contain letters, digits, underscores and hyphens, so the category
+   * name is base64url encoded.
+   */
+  static String taskName(String stemmedListName, long millis, long intervalMillis) {
+    return "retrain-"
+        + Base64.getUrlEncoder()
+            .withoutPadding()
+            .encodeToString(stemmedListName.getBytes(StandardCharsets.UTF_8))
+        + "-"
+        + millis / intervalMillis;
+  }
+
+  /**
+   * Adds the retraining task of the category for the current interval, unless it already exists.
+   *
+   * @return False if the task could not be added
+   */
+  private boolean schedule(String stemmedListName, long now) {
+    long intervalEnd = (now / intervalMillis + 1) * intervalMillis;
+    try {
+      getQueue()
+          .add(
+              TaskOptions.Builder.withUrl(RETRAIN_PATH)
+                  .method(TaskOptions.Method.POST)
+                  .taskName(taskName(stemmedListName, now, intervalMillis))
+                  .param(LIST_NAME_PARAM, stemmedListName)
+                  .etaMillis(Math.max(intervalEnd, now + debounceMillis)));
+      return true;
+    } catch (TaskAlreadyExistsException e) {
+      return true;
+    } catch (RuntimeException e) {
+      log.error("Could not add retraining task, retraining synchronously: " + e);
+      return false;
+    }
+  }
+
+  private Queue getQueue() {
+    return QueueFactory.getQueue(QUEUE_NAME);
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stochastic gradient descent matrix factorization over flat factor arrays. User factors are
+ * stored row-major as numUsers x K and item factors as numItems x K, so each user's and item's
+ * features are contiguous. Each epoch only visits the observed entries of the sparse data matrix
+ * and the inner loop does not allocate.
+ *
+ * <p>The regularized squared error is accumulated during each SGD pass, using the error of each
+ * entry before its update. Convergence is only evaluated every checkInterval epochs, and training
+ * stops early once the error has not improved for patience consecutive checks.
+ */
+public class SgdFactorizer implements FactorizationSolver {
+
+  private static Logger log = LoggerFactory.getLogger(SgdFactorizer.class);
+  private static final double MIN_RELATIVE_IMPROVEMENT = 1e-4;
+
+  private final int K;
+  private final int steps;
+  private final double alphaStart;
+  private final double beta;
+  private final int checkInterval;
+  private final int patience;
+
+  /**
+   * SgdFactorizer constructor.
+   *
+   * @param k Number of latent features
+   * @param steps Maximum number of epochs to run
+   * @param alphaStart Initial learning rate, decayed by the square root of the epoch number
+   * @param beta Regularization factor
+   * @param checkInterval Number of epochs between convergence checks
+   * @param patience Number of consecutive convergence checks without improvement after which
+   *     training stops, or 0 to always run until the error threshold or maximum number of epochs
+   */
+  public SgdFactorizer(
+      int k, int steps, double alphaStart, double beta, int checkInterval, int patience) {
+    K = k;
+    this.steps = steps;
+    this.alphaStart = alphaStart;
+    this.beta = beta;
+    this.checkInterval = checkInterval;
+    this.patience = patience;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Training stops once the regularized squared error drops below 0.001, stops improving, or
+   * the maximum number of epochs has been run.
+   */
+  @Override
+  public double[] factorize(SparseMatrix data, double[] userFeatures, double[] itemFeatures)
+      throws IllegalStateException {
+    train(data, userFeatures, itemFeatures);
+    return FactorizationSolver.predict(userFeatures, itemFeatures, K);
+  }
+
+  /**
+   * Trains the user and item features in place on the entries of data, stopping as described in
+   * factorize.
+   *
+   * @param data Sparse matrix of user-item weights, one row per user
+   * @param userFeatures Flat row-major array of K features per user, updated in place
+   * @param itemFeatures Flat row-major array of K features per item, updated in place
+   * @return Number of epochs run
+   * @throws IllegalStateException If the error or the features become NaN or infinite
+   */
+  int train(SparseMatrix data, double[] userFeatures, double[] itemFeatures)
+      throws IllegalStateException {
+    int numUsers = data.numRows();
+    double bestError = Double.POSITIVE_INFINITY;
+    int checksWithoutImprovement = 0;
+    int step = 0;
+    for (; step < steps; step++) {
+      double learningRate = Math.max(alphaStart / (Math.sqrt(step + 1)), 0.005);
+      double totalError = 0.0;
+      for (int row = 0; row < numUsers; row++) {
+        int userOffset = row * K;
+        for (int entry = data.rowStart(row); entry < data.rowEnd(row); entry++) {
+          int itemOffset = data.col(entry) * K;
+          double prediction =
+              FactorizationSolver.dot(userFeatures, userOffset, itemFeatures, itemOffset, K);
+          double error = data.value(entry) - prediction;
+          totalError += error * error;
+          for (int k = 0; k < K; k++) {
+            double userFeature = userFeatures[userOffset + k];
+            double itemFeature = itemFeatures[itemOffset + k];
+            totalError += (beta / 2) * (userFeature * userFeature + itemFeature * itemFeature);
+            userFeatures[userOffset + k] =
+                userFeature + learningRate * (2 * error * itemFeature - beta * userFeature);
+            itemFeatures[itemOffset + k] =
+                itemFeature + learningRate * (2 * error * userFeature - beta * itemFeature);
+          }
+        }
+      }
+      if (!Double.isFinite(totalError) || !isFinite(userFeatures) || !isFinite(itemFeatures)) {
+        log.error("Failure at step: " + step);
+        throw new IllegalStateException("NaN error in matrix factorization.");
+      }
+      if ((step + 1) % checkInterval != 0) {
+        continue;
+      }
+      if (totalError < 0.001) {
+        step++;
+        break;
+      }
+      if (totalError < bestError * (1 - MIN_RELATIVE_IMPROVEMENT)) {
+        bestError = totalError;
+        checksWithoutImprovement = 0;
+      } else if (patience > 0 && ++checksWithoutImprovement >= patience) {
+        log.info("Converged at step " + step + " with error " + totalError);
+        step++;
+        break;
+      }
+    }
+    return step;
+  }
+
+  /** Returns true if none of the features are NaN or infinite. */
+  private boolean isFinite(double[] features) {
+    for (double feature : features) {
+      if (!Double.isFinite(feature)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
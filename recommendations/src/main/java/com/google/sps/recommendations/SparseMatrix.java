@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import java.util.Arrays;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Compressed sparse row (CSR) matrix that stores only the observed entries of the user-item
+ * matrix. Entries of row r are stored at indices [rowStart(r), rowEnd(r)) of the column and value
+ * arrays, ordered by column.
+ */
+public class SparseMatrix {
+
+  private final int numRows;
+  private final int numCols;
+  private final int[] rowOffsets;
+  private final int[] cols;
+  private final double[] values;
+
+  /**
+   * SparseMatrix constructor from CSR arrays.
+   *
+   * @param numRows Number of rows in the matrix
+   * @param numCols Number of columns in the matrix
+   * @param rowOffsets Array of numRows + 1 offsets where entries of each row start
+   * @param cols Column index of each entry, ordered by column within each row
+   * @param values Value of each entry
+   */
+  public SparseMatrix(int numRows, int numCols, int[] rowOffsets, int[] cols, double[] values) {
+    this.numRows = numRows;
+    this.numCols = numCols;
+    this.rowOffsets = rowOffsets;
+    this.cols = cols;
+    this.values = values;
+  }
+
+  /**
+   * Creates a sparse matrix from the entries of a dense matrix that differ from 0.0 by more than
+   * delta.
+   *
+   * @param dense Dense matrix to convert
+   * @param delta Threshold below which entries are treated as unobserved
+   * @return SparseMatrix containing the observed entries of the dense matrix
+   */
+  public static SparseMatrix fromDense(SimpleMatrix dense, double delta) {
+    Builder builder = new Builder(dense.numRows(), dense.numCols(), delta);
+    for (int row = 0; row < dense.numRows(); row++) {
+      for (int col = 0; col < dense.numCols(); col++) {
+        builder.add(col, dense.get(row, col));
+      }
+      builder.endRow();
+    }
+    return builder.build();
+  }
+
+  public int numRows() {
+    return numRows;
+  }
+
+  public int numCols() {
+    return numCols;
+  }
+
+  /** Returns the number of observed entries. */
+  public int nonZeros() {
+    return values.length;
+  }
+
+  /** Returns the index of the first entry of the given row. */
+  public int rowStart(int row) {
+    return rowOffsets[row];
+  }
+
+  /** Returns the index after the last entry of the given row. */
+  public int rowEnd(int row) {
+    return rowOffsets[row + 1];
+  }
+
+  /** Returns the column of the given entry. */
+  public int col(int entry) {
+    return cols[entry];
+  }
+
+  /** Returns the value of the given entry. */
+  public double value(int entry) {
+    return values[entry];
+  }
+
+  /**
+   * Returns the value at the given row and column, or 0.0 if the entry is not observed.
+   *
+   * @param row Row index
+   * @param col Column index
+   * @return Value of the entry
+   */
+  public double get(int row, int col) {
+    int entry = Arrays.binarySearch(cols, rowStart(row), rowEnd(row), col);
+    return entry < 0 ? 0.0 : values[entry];
+  }
+
+  /** Returns the matrix as a dense SimpleMatrix with unobserved entries set to 0.0. */
+  public SimpleMatrix toDense() {
+    SimpleMatrix dense = new SimpleMatrix(numRows, numCols);
+    for (int row = 0; row < numRows; row++) {
+      for (int entry = rowStart(row); entry < rowEnd(row); entry++) {
+        dense.set(row, cols[entry], values[entry]);
+      }
+    }
+    return dense;
+  }
+
+  /**
+   * Returns the transpose of this matrix, so that the entries of each column can be iterated as a
+   * row.
+   *
+   * @return SparseMatrix with rows and columns swapped
+   */
+  public SparseMatrix transpose() {
+    int[] transposedOffsets = new int[numCols + 1];
+    for (int entry = 0; entry < nonZeros(); entry++) {
+      transposedOffsets[cols[entry] + 1]++;
+    }
+    for (int col = 0; col < numCols; col++) {
+      transposedOffsets[col + 1] += transposedOffsets[col];
+    }
+    int[] nextEntry = Arrays.copyOf(transposedOffsets, numCols);
+    int[] transposedCols = new int[nonZeros()];
+    double[] transposedValues = new double[nonZeros()];
+    for (int row = 0; row < numRows; row++) {
+      for (int entry = rowStart(row); entry < rowEnd(row); entry++) {
+        int transposedEntry = nextEntry[cols[entry]]++;
+        transposedCols[transposedEntry] = row;
+        transposedValues[transposedEntry] = values[entry];
+      }
+    }
+    return new SparseMatrix(
+        numCols, numRows, transposedOffsets, transposedCols, transposedValues);
+  }
+
+  @Override
+  public String toString() {
+    return "SparseMatrix " + numRows + "x" + numCols + " with " + nonZeros() + " entries";
+  }
+
+  /**
+   * Builds a sparse matrix row by row in a single pass. Entries within a row may be added in any
+   * column order; entries whose magnitude is at most delta are dropped.
+   */
+  public static class Builder {
+    private final int numRows;
+    private final int numCols;
+    private final double delta;
+    private final int[] rowOffsets;
+    private int[] cols = new int[16];
+    private double[] values = new double[16];
+    private int size = 0;
+    private int row = 0;
+
+    /**
+     * Builder constructor.
+     *
+     * @param numRows Number of rows in the matrix
+     * @param numCols Number of columns in the matrix
+     * @param delta Threshold below which entries are treated as unobserved
+     */
+    public Builder(int numRows, int numCols, double delta) {
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.delta = delta;
+      rowOffsets = new int[numRows + 1];
+    }
+
+    /**
+     * Adds an entry to the current row.
+     *
+     * @param col Column of the entry
+     * @param value Value of the entry
+     */
+    public void add(int col, double value) {
+      if (Math.abs(value - 0.0) <= delta) {
+        return;
+      }
+      if (size == values.length) {
+        cols = Arrays.copyOf(cols, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      cols[size] = col;
+      values[size] = value;
+      size++;
+    }
+
+    /** Finishes the current row, ordering its entries by column. */
+    public void endRow() throws IllegalStateException {
+      if (row == numRows) {
+        throw new IllegalStateException("Sparse matrix already has " + numRows + " rows.");
+      }
+      int start = rowOffsets[row];
+      for (int i = start + 1; i < size; i++) {
+        int col = cols[i];
+        double value = values[i];
+        int j = i - 1;
+        while (j >= start && cols[j] > col) {
+          cols[j + 1] = cols[j];
+          values[j + 1] = values[j];
+          j--;
+        }
+        cols[j + 1] = col;
+        values[j + 1] = value;
+      }
+      row++;
+      rowOffsets[row] = size;
+    }
+
+    /** Returns the built matrix. All rows must have been ended. */
+    public SparseMatrix build() throws IllegalStateException {
+      if (row != numRows) {
+        throw new IllegalStateException("Only " + row + " of " + numRows + " rows were built.");
+      }
+      return new SparseMatrix(
+          numRows, numCols, rowOffsets, Arrays.copyOf(cols, size), Arrays.copyOf(values, size));
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cached stem-to-word dictionaries of each user and of all users. Each dictionary entity is read
+ * from datastore once and then served from memory, so unstemming a word no longer costs two
+ * datastore gets.
+ *
+ * <p>The universal dictionary is split by stem hash into a fixed number of shard entities, so that
+ * writers of different words do not contend on one entity and no entity grows with the whole
+ * vocabulary. Lookups go directly to the shard of the stem, then to the single universal entity
+ * written before sharding.
+ *
+ * <p>Every dictionary has a version counter in memcache that is incremented whenever it is
+ * written. Instances compare their cached version with the counter before serving a dictionary
+ * and reload it when another instance has changed it. The counters of every dictionary a lookup
+ * may need are read with a single memcache call. If the counter cannot be read, the dictionary is
+ * read from datastore.
+ */
+public class StemDictionary {
+
+  private static Logger log = LoggerFactory.getLogger(StemDictionary.class);
+  private static final String NAMESPACE = "stemDictionary";
+  private static final String USER_KIND = "StemDict";
+  private static final String UNIVERSAL_KIND = "UniversalStemDict";
+  private static final int NUM_UNIVERSAL_SHARDS = 16;
+  private static final Key LEGACY_UNIVERSAL_KEY = KeyFactory.createKey(UNIVERSAL_KIND, "1");
+  private static final int MAX_RETRIES = 5;
+  private static final int MAX_CACHED_DICTIONARIES = 1000;
+  private static final Random random = new Random();
+  private static final Map<Key, CachedDictionary> dictionaries = new ConcurrentHashMap<>();
+  private static final MemcacheService memcache =
+      MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+  /** Dictionary entity contents cached under the version they were read at. */
+  private static class CachedDictionary {
+    private final Object version;
+    private final Map<String, String> words;
+
+    CachedDictionary(Object version, Map<String, String> words) {
+      this.version = version;
+      this.words = words;
+    }
+  }
+
+  /**
+   * Gets the unstemmed version of a word from the given user's stem mapping, or from the universal
+   * stem dictionary if the user has never used the word.
+   *
+   * @param datastore Database instance
+   * @param userID String containing current user's unique ID
+   * @param stemmedWord Stemmed version of a word to be unstemmed.
+   * @return unstemmed version of the input word as given by the specified user
+   */
+  public static String unstem(DatastoreService datastore, String userID, String stemmedWord)
+      throws IllegalStateException {
+    return unstem(datastore, userID, Collections.singletonList(stemmedWord)).get(stemmedWord);
+  }
+
+  /**
+   * Gets the unstemmed versions of several words as unstem does. The versions of all dictionaries
+   * that may be needed are read from memcache with a single call.
+   *
+   * @param datastore Database instance
+   * @param userID String containing current user's unique ID
+   * @param stemmedWords Stemmed versions of the words to be unstemmed
+   * @return Map of each stemmed word to its unstemmed version as given by the specified user
+   */
+  public static Map<String, String> unstem(
+      DatastoreService datastore, String userID, Collection<String> stemmedWords)
+      throws IllegalStateException {
+    Key userKey = userKey(userID);
+    Set<Key> keys = new LinkedHashSet<>();
+    keys.add(userKey);
+    for (String stemmedWord : stemmedWords) {
+      keys.add(universalKey(stemmedWord));
+    }
+    keys.add(LEGACY_UNIVERSAL_KEY);
+    Map<Key, Object> versions = getVersions(keys);
+    Map<String, String> words = new HashMap<>();
+    for (String stemmedWord : stemmedWords) {
+      String word = getWords(datastore, userKey, versions).get(stemmedWord);
+      if (word == null) {
+        word = getWords(datastore, universalKey(stemmedWord), versions).get(stemmedWord);
+      }
+      if (word == null) {
+        word = getWords(datastore, LEGACY_UNIVERSAL_KEY, versions).get(stemmedWord);
+      }
+      if (word == null) {
+        throw new IllegalStateException("Stem mapping does not exist for stemmed word.");
+      }
+      words.put(stemmedWord, word);
+    }
+    return words;
+  }
+
+  /**
+   * Stores the stem-to-word mapping of the given words in the user's dictionary and in the shards
+   * of the universal dictionary. All dictionaries involved are read with one batched get, and only
+   * those missing a mapping are written, each in its own transaction so that concurrent writers to
+   * the same shard do not lose each other's words.
+   *
+   * @param datastore Database instance
+   * @param userID String containing current user's unique ID
+   * @param words Unstemmed words to store
+   */
+  public static void saveWords(DatastoreService datastore, String userID, Collection<String> words)
+      throws IllegalStateException {
+    Map<Key, Map<String, String>> mappings = new LinkedHashMap<>();
+    for (String word : words) {
+      String stem = StemUtils.stemmed(word);
+      mappings.computeIfAbsent(userKey(userID), key -> new HashMap<>()).put(stem, word);
+      mappings.computeIfAbsent(universalKey(stem), key -> new HashMap<>()).put(stem, word);
+    }
+    Map<Key, Entity> existing = datastore.get(mappings.keySet());
+    for (Map.Entry<Key, Map<String, String>> mapping : mappings.entrySet()) {
+      if (!containsAll(existing.get(mapping.getKey()), mapping.getValue())) {
+        putMappings(datastore, mapping.getKey(), mapping.getValue());
+        invalidate(mapping.getKey());
+      }
+    }
+  }
+
+  /** Adds the mappings to a dictionary entity in a transaction, retrying on contention. */
+  private static void putMappings(
+      DatastoreService datastore, Key key, Map<String, String> mappings)
+      throws IllegalStateException {
+    for (int attempt = 0; ; attempt++) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        Entity entity;
+        try {
+          entity = datastore.get(txn, key);
+        } catch (EntityNotFoundException e) {
+          entity = new Entity(key);
+        }
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+          entity.setProperty(mapping.getKey(), mapping.getValue());
+        }
+        datastore.put(txn, entity);
+        txn.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        if (attempt >= MAX_RETRIES) {
+          throw new IllegalStateException("Could not save stem dictionary " + key + ".", e);
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  private static boolean containsAll(Entity entity, Map<String, String> mappings) {
+    if (entity == null) {
+      return false;
+    }
+    for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+      if (!mapping.getValue().equals(entity.getProperty(mapping.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Marks the given dictionary as changed on every instance.
+   *
+   * @param key Key of the dictionary entity
+   */
+  static void invalidate(Key key) {
+    dictionaries.remove(key);
+    try {
+      memcache.increment(versionKey(key), 1L);
+    } catch (RuntimeException e) {
+      log.error("Could not increment stem dictionary version: " + e);
+    }
+  }
+
+  /** Drops all dictionaries cached by this instance. Should only be called for testing purposes. */
+  static void clear() {
+    dictionaries.clear();
+  }
+
+  static Key userKey(String userID) {
+    return KeyFactory.createKey(USER_KIND, userID);
+  }
+
+  /** Returns the key of the universal dictionary shard holding the given stem. */
+  static Key universalKey(String stem) {
+    return KeyFactory.createKey(
+        UNIVERSAL_KIND, "shard-" + Math.floorMod(stem.hashCode(), NUM_UNIVERSAL_SHARDS));
+  }
+
+  /**
+   * Returns the stem-to-word mapping of a dictionary, reloading it from datastore if it is not
+   * cached at its current version.
+   */
+  private static Map<String, String> getWords(
+      DatastoreService datastore, Key key, Map<Key, Object> versions) {
+    Object version = versions.get(key);
+    CachedDictionary cached = dictionaries.get(key);
+    if (cached != null && version != null && version.equals(cached.version)) {
+      return cached.words;
+    }
+    Map<String, String> words = new HashMap<>();
+    try {
+      for (Map.Entry<String, Object> property :
+          datastore.get(key).getProperties().entrySet()) {
+        words.put(property.getKey(), (String) property.getValue());
+      }
+    } catch (EntityNotFoundException e) {
+      // An unknown dictionary has no mappings yet.
+    }
+    words = Collections.unmodifiableMap(words);
+    if (version != null) {
+      if (dictionaries.size() >= MAX_CACHED_DICTIONARIES) {
+        dictionaries.clear();
+      }
+      dictionaries.put(key, new CachedDictionary(version, words));
+    }
+    return words;
+  }
+
+  /**
+   * Returns the current versions of the given dictionaries with one memcache call, starting the
+   * counters that are not in memcache at a random value so that they cannot match a version cached
+   * before the counter was evicted.
+   *
+   * @return Map of the dictionaries to their versions, empty if memcache is unavailable
+   */
+  private static Map<Key, Object> getVersions(Collection<Key> keys) {
+    Map<String, Key> versionKeys = new HashMap<>();
+    for (Key key : keys) {
+      versionKeys.put(versionKey(key), key);
+    }
+    try {
+      Map<String, Object> versions = memcache.getAll(versionKeys.keySet());
+      if (versions.size() < versionKeys.size()) {
+        Map<String, Object> initialVersions = new HashMap<>();
+        for (String versionKey : versionKeys.keySet()) {
+          if (!versions.containsKey(versionKey)) {
+            initialVersions.put(versionKey, random.nextLong() & Long.MAX_VALUE);
+          }
+        }
+        memcache.putAll(initialVersions, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        versions = memcache.getAll(versionKeys.keySet());
+      }
+      Map<Key, Object> result = new HashMap<>();
+      for (Map.Entry<String, Object> version : versions.entrySet()) {
+        result.put(versionKeys.get(version.getKey()), version.getValue());
+      }
+      return result;
+    } catch (RuntimeException e) {
+      log.error("Could not read stem dictionary versions: " + e);
+      return Collections.emptyMap();
+    }
+  }
+
+  private static String versionKey(Key key) {
+    return key.getKind() + ":" + key.getName();
+  }
+}
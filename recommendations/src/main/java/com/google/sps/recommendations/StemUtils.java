@@ -17,10 +17,11 @@
 package com.google.sps.recommendations;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
-import com.google.appengine.api.datastore.KeyFactory;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +31,10 @@ import org.tartarus.snowball.ext.englishStemmer;
 public class StemUtils {
 
   private static Logger log = LoggerFactory.getLogger(StemUtils.class);
+  private static final int MAX_CACHED_STEMS = 10000;
+  private static final ThreadLocal<SnowballStemmer> stemmer =
+      ThreadLocal.withInitial(englishStemmer::new);
+  private static final Map<String, String> stemCache = new ConcurrentHashMap<>();
 
   /**
    * Stores the stem-to-word dictionary.
@@ -39,41 +44,60 @@ public class StemUtils {
    * @param itemName Name of the item to be stemmed and saved.
    */
   public static void saveStemData(DatastoreService datastore, String userID, String itemName) {
-    saveStemData(datastore, "StemDict", userID, itemName);
-    saveStemData(datastore, "UniversalStemDict", "1", itemName);
+    StemDictionary.saveWords(datastore, userID, Collections.singletonList(itemName));
   }
 
   /**
-   * Stores the stem-to-word dictionary for general cases.
+   * Stores the stem-to-word dictionary for all items of a list. The user's dictionary and the
+   * universal dictionary shards of the items are read with one batched get, and each of them that
+   * is missing a mapping is then written in its own transaction.
    *
-   * @param keyname Name of the query key
-   * @param keyID String ID of the query key
+   * @param userID String containing current user's unique ID
    * @param datastore Database entity to retrieve data from
-   * @param itemName Name of the item to be stemmed and saved.
+   * @param items Names of the items to be stemmed and saved.
    */
-  private static void saveStemData(
-      DatastoreService datastore, String keyname, String keyID, String itemName) {
-    Entity entity;
-    try {
-      entity = datastore.get(KeyFactory.createKey(keyname, keyID));
-    } catch (EntityNotFoundException e) {
-      entity = new Entity(keyname, keyID);
-    }
-    entity.setProperty(stemmed(itemName), itemName);
-    datastore.put(entity);
+  public static void saveStemData(
+      DatastoreService datastore, String userID, Collection<String> items) {
+    StemDictionary.saveWords(datastore, userID, items);
   }
 
   /**
-   * Reduces words to their stems for word correlation.
+   * Reduces words to their stems for word correlation. Stems are memoized and each thread reuses its
+   * own stemmer instance.
    *
    * @param word Word to be reduced
    * @return The stem of the inputted word.
    */
   public static String stemmed(String word) {
-    SnowballStemmer snowballStemmer = new englishStemmer();
-    snowballStemmer.setCurrent(word);
-    snowballStemmer.stem();
-    return snowballStemmer.getCurrent().toLowerCase().replaceAll("\\s+", "");
+    String stem = stemCache.get(word);
+    if (stem == null) {
+      SnowballStemmer snowballStemmer = stemmer.get();
+      snowballStemmer.setCurrent(word);
+      snowballStemmer.stem();
+      stem = removeWhitespace(snowballStemmer.getCurrent().toLowerCase());
+      if (stemCache.size() >= MAX_CACHED_STEMS) {
+        stemCache.clear();
+      }
+      stemCache.put(word, stem);
+    }
+    return stem;
+  }
+
+  /**
+   * Removes all whitespace characters from a string.
+   *
+   * @param word String to remove whitespace from
+   * @return The input string without whitespace
+   */
+  private static String removeWhitespace(String word) {
+    StringBuilder sb = new StringBuilder(word.length());
+    for (int i = 0; i < word.length(); i++) {
+      char ch = word.charAt(i);
+      if (!Character.isWhitespace(ch)) {
+        sb.append(ch);
+      }
+    }
+    return sb.toString();
   }
 
   /**
@@ -87,32 +111,23 @@ public class StemUtils {
    * @return unstemmed version of the input word as given by the specified user
    */
   public static String unstem(String userID, DatastoreService datastore, String stemmedWord)
-      throws EntityNotFoundException, IllegalStateException {
-    String userUnstemmed = tryUnstem(datastore, "StemDict", userID, stemmedWord);
-    if (userUnstemmed == null) {
-      String universalUnstemmed = tryUnstem(datastore, "UniversalStemDict", "1", stemmedWord);
-      if (universalUnstemmed == null) {
-        throw new IllegalStateException("Stem mapping does not exist for stemmed word.");
-      }
-      return universalUnstemmed;
-    }
-    return userUnstemmed;
+      throws IllegalStateException {
+    return StemDictionary.unstem(datastore, userID, stemmedWord);
   }
 
   /**
-   * Attempts to find stem-to-unstem mapping for a stemmed word. Returns null if not found.
+   * Gets the unstemmed versions of several words as unstem does, checking the versions of the
+   * stem dictionaries involved once for all of them.
    *
-   * @param datastore Database instance
-   * @param keyname Name of the query key
-   * @param keyID ID of the query
-   * @param stemmedWord Word to be unstemmed
-   * @return unstemmed word or null if no mapping exists for the stemmed word
+   * @param userID String containing current user's unique ID
+   * @param datastore Database entity to retrieve data from
+   * @param stemmedWords Stemmed versions of the words to be unstemmed.
+   * @return Map of each stemmed word to its unstemmed version as given by the specified user
    */
-  private static String tryUnstem(
-      DatastoreService datastore, String keyname, String keyID, String stemmedWord)
-      throws EntityNotFoundException {
-    Entity entity = datastore.get(KeyFactory.createKey(keyname, keyID));
-    return (String) entity.getProperty(stemmedWord);
+  public static Map<String, String> unstem(
+      String userID, DatastoreService datastore, Collection<String> stemmedWords)
+      throws IllegalStateException {
+    return StemDictionary.unstem(datastore, userID, stemmedWords);
   }
 
   /**
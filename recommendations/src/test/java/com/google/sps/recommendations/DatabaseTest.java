@@ -6,11 +6,28 @@ import static org.mockito.Mockito.*;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -24,12 +41,17 @@ public class DatabaseTest {
 
   private static Logger log = LoggerFactory.getLogger(DatabaseTest.class);
   private final LocalServiceTestHelper helper =
-      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(),
+          new LocalTaskQueueTestConfig()
+              .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml")
+              .setDisableAutoTaskExecution(true));
   private DatastoreService datastore;
 
   @Before
   public void setUp() {
     helper.setUp();
+    FactorModel.clear();
     datastore = DatastoreServiceFactory.getDatastoreService();
   }
 
@@ -38,6 +60,41 @@ public class DatabaseTest {
     helper.tearDown();
   }
 
+  /**
+   * Tests that a user's new list is folded into the trained model when retraining is deferred to
+   * the task queue.
+   */
+  @Test
+  public void testFoldInWhenRetrainDeferred() throws Exception {
+    for (int user = 1; user <= 5; user++) {
+      DatabaseUtils.storeUserListInformation(
+          datastore,
+          String.valueOf(user),
+          "groceri",
+          user % 2 == 0 ? Arrays.asList("apple", "banana") : Arrays.asList("carrot", "donut"),
+          true);
+    }
+    RetrainingScheduler scheduler = RetrainingScheduler.getInstance();
+    scheduler.setSynchronous(false);
+    try {
+      DatabaseUtils.storeUserListInformation(
+          datastore, "6", "groceri", Arrays.asList("apple", "banana"), true);
+    } finally {
+      scheduler.setSynchronous(true);
+    }
+    assertEquals(
+        1,
+        LocalTaskQueueTestConfig.getLocalTaskQueue()
+            .getQueueStateInfo()
+            .get(RetrainingScheduler.QUEUE_NAME)
+            .getCountTasks());
+    assertNull(FactorModel.get(datastore, "groceri").getUserIndex("6"));
+    List<Pair<String, Double>> predictions =
+        Recommender.getPredictions(
+            datastore.get(KeyFactory.createKey("UserPredictions-groceri", "6")));
+    assertEquals(2, predictions.size());
+  }
+
   /** Test groceri database seeding. */
   @Test
   public void testDatabaseReset() throws Exception {
@@ -50,6 +107,172 @@ public class DatabaseTest {
     testHelper("Frac-groceri");
   }
 
+  /** Test that the unique items of a list are derived from the seeded Frac-groceri entities. */
+  @Test
+  public void testUniqueItemsFromFracEntities() throws Exception {
+    DatabaseUtils.resetDatabase(datastore);
+    List<Entity> results =
+        datastore.prepare(new Query("Frac-groceri")).asList(FetchOptions.Builder.withDefaults());
+    Set<String> expected =
+        new HashSet<>(
+            Arrays.asList(
+                "avocado", "bean", "cabbage", "carrot", "cucumb", "donut", "egg", "honey",
+                "icecream", "kale", "kiwi", "lettuce", "milk", "peach", "pineappl", "spinach",
+                "tomato", "watermelon", "zucchini"));
+    assertEquals(expected, RecommendationUtils.getUniqueItems(results));
+  }
+
+  /** Test that concurrent list updates from the same user are all counted. */
+  @Test
+  public void testConcurrentListUpdates() throws Exception {
+    int numThreads = 4;
+    int updatesPerThread = 5;
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> updates = new ArrayList<>();
+    for (int thread = 0; thread < numThreads; thread++) {
+      updates.add(
+          executor.submit(
+              () -> {
+                ApiProxy.setEnvironmentForCurrentThread(environment);
+                for (int update = 0; update < updatesPerThread; update++) {
+                  DatabaseUtils.storeUserListInformation(
+                      datastore, "1", "groceri", Arrays.asList("apples", "bananas"), false);
+                }
+              }));
+    }
+    for (Future<?> update : updates) {
+      update.get();
+    }
+    executor.shutdown();
+
+    Entity aggregate = datastore.get(KeyFactory.createKey("groceri", "1"));
+    assertEquals((long) numThreads * updatesPerThread, aggregate.getProperty("appl"));
+    assertEquals((long) numThreads * updatesPerThread, aggregate.getProperty("banana"));
+    Entity frac = datastore.get(KeyFactory.createKey("Frac-groceri", "1"));
+    assertEquals(
+        1.0 + 0.4 * (numThreads * updatesPerThread - 1), (double) frac.getProperty("appl"), 1e-9);
+  }
+
+  /**
+   * Test that lazily decayed weights match decaying every weight of the user's Frac- entity each
+   * time a new list is started, over a random sequence of list updates and rejected items.
+   */
+  @Test
+  public void testLazyDecayMatchesEagerDecay() throws Exception {
+    List<String> items = Arrays.asList("apples", "bananas", "carrots", "donuts", "eggs", "figs");
+    Map<String, Double> expected = new HashMap<>();
+    long count = 0;
+    Random random = new Random(1);
+    for (int step = 0; step < 60; step++) {
+      List<String> stepItems = new ArrayList<>();
+      for (String item : items) {
+        if (random.nextInt(3) == 0) {
+          stepItems.add(item);
+        }
+      }
+      if (stepItems.isEmpty()) {
+        continue;
+      }
+      if (count > 0 && random.nextInt(5) == 0) {
+        DatabaseUtils.updateFractionalAggregation(
+            datastore, "1", "groceri", stepItems, count, false, false);
+        addEager(expected, stepItems, -1.0);
+        continue;
+      }
+      boolean newList = random.nextBoolean();
+      DatabaseUtils.storeUserListInformation(datastore, "1", "groceri", stepItems, newList);
+      if (newList) {
+        count++;
+        expected.replaceAll((item, weight) -> weight * 0.6);
+      }
+      addEager(expected, stepItems, expected.isEmpty() ? 1.0 : (count == 1 ? 1.0 : 0.4));
+
+      Entity frac = datastore.get(KeyFactory.createKey("Frac-groceri", "1"));
+      for (String item : items) {
+        String stemmedItem = StemUtils.stemmed(item);
+        assertEquals(
+            expected.getOrDefault(stemmedItem, 0.0),
+            DatabaseUtils.getFracWeight(frac, stemmedItem),
+            1e-9);
+      }
+    }
+  }
+
+  /**
+   * Test that bulk ingested list events produce the same aggregate and fractional entities as
+   * storing each event through storeUserListInformation and updateFractionalAggregation.
+   */
+  @Test
+  public void testBulkStoreMatchesSingleStores() throws Exception {
+    List<String> items = Arrays.asList("apples", "bananas", "carrots", "donuts", "eggs");
+    Random random = new Random(2);
+    StringBuilder events = new StringBuilder();
+    for (int step = 0; step < 300; step++) {
+      String userID = String.valueOf(random.nextInt(4));
+      List<String> stepItems = new ArrayList<>();
+      for (String item : items) {
+        if (random.nextInt(3) == 0) {
+          stepItems.add(item);
+        }
+      }
+      boolean newList = random.nextBoolean();
+      boolean positiveFeedback = random.nextInt(5) != 0;
+      events.append(
+          String.format(
+              "{\"userID\": \"%s\", \"stemmedListName\": \"bulk\", \"items\": %s, "
+                  + "\"newList\": %b, \"positiveFeedback\": %b}\n",
+              userID, new Gson().toJson(stepItems), newList, positiveFeedback));
+      if (positiveFeedback) {
+        DatabaseUtils.storeUserListInformation(datastore, userID, "single", stepItems, newList);
+        continue;
+      }
+      try {
+        Entity aggregate = datastore.get(KeyFactory.createKey("single", userID));
+        long count = (long) aggregate.getProperty("count");
+        DatabaseUtils.updateFractionalAggregation(
+            datastore, userID, "single", stepItems, count, false, false);
+      } catch (EntityNotFoundException e) {
+        // Rejected items of unknown lists are not stored, as in /storeInfo.
+      }
+    }
+
+    assertEquals(
+        300, DatabaseUtils.storeListEvents(datastore, new StringReader(events.toString())));
+    for (String kind : Arrays.asList("", "Frac-")) {
+      for (int user = 0; user < 4; user++) {
+        Entity single = datastore.get(KeyFactory.createKey(kind + "single", String.valueOf(user)));
+        Entity bulk = datastore.get(KeyFactory.createKey(kind + "bulk", String.valueOf(user)));
+        assertEquals(single.getProperty("count"), bulk.getProperty("count"));
+        for (String item : StemUtils.stemmedList(items)) {
+          Object expected = single.getProperty(item);
+          if (kind.isEmpty() || expected == null) {
+            assertEquals(expected, bulk.getProperty(item));
+          } else {
+            assertEquals(
+                DatabaseUtils.getFracWeight(single, item),
+                DatabaseUtils.getFracWeight(bulk, item),
+                1e-9);
+          }
+        }
+      }
+    }
+  }
+
+  /** Test that invalid list events are rejected. */
+  @Test(expected = IOException.class)
+  public void testBulkStoreInvalidEvent() throws Exception {
+    DatabaseUtils.storeListEvents(
+        datastore, new StringReader("{\"userID\": \"1\", \"items\": [\"apples\"]}\n"));
+  }
+
+  /** Adds a value to the eagerly decayed weights of the given items. */
+  private static void addEager(Map<String, Double> weights, List<String> items, double value) {
+    for (String item : items) {
+      weights.merge(StemUtils.stemmed(item), value, Double::sum);
+    }
+  }
+
   private void testHelper(String category) throws Exception {
     DatabaseUtils.resetDatabase(datastore);
     Query query = new Query(category);
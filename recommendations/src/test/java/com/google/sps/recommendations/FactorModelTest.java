@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class FactorModelTest {
+
+  private double[][] data =
+      new double[][] {
+        {5.0, 3.0, 0.0, 1.0},
+        {4.0, 0.0, 0.0, 1.0},
+        {1.0, 1.0, 0.0, 5.0},
+        {1.0, 0.0, 0.0, 4.0},
+        {0.0, 1.0, 5.0, 4.0}
+      };
+  private List<String> items = Arrays.asList("appl", "banana", "carrot", "donut");
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private DatastoreService datastore;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    FactorModel.clear();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  /** Checks that a model survives binary encoding unchanged. */
+  @Test
+  public void testEncodeDecode() throws Exception {
+    FactorModel model =
+        new FactorModel(
+            2,
+            Arrays.asList("1", "2"),
+            Arrays.asList("appl", "crème brûlée", "donut"),
+            new double[] {0.5, -1.25, 3.0, 0.0},
+            new double[] {1.0, 2.0, -3.0, 4.5, Math.PI, -0.001});
+    FactorModel decoded = FactorModel.decode(model.encode());
+    assertEquals(2, decoded.getK());
+    assertEquals(model.getUserIDs(), decoded.getUserIDs());
+    assertEquals(model.getItems(), decoded.getItems());
+    assertArrayEquals(model.getUserFeatures(), decoded.getUserFeatures(), 0.0);
+    assertArrayEquals(model.getItemFeatures(), decoded.getItemFeatures(), 0.0);
+    assertEquals(Integer.valueOf(1), decoded.getItemIndex("crème brûlée"));
+    assertEquals(Integer.valueOf(1), decoded.getUserIndex("2"));
+    assertNull(decoded.getUserIndex("3"));
+  }
+
+  /** Checks that training persists the model and that other instances load it from datastore. */
+  @Test
+  public void testModelPersisted() throws Exception {
+    assertNull(FactorModel.get(datastore, "groceri"));
+    storeUsers(items, 5);
+    train(new Recommender(), items);
+    FactorModel trained = FactorModel.get(datastore, "groceri");
+
+    FactorModel.clear();
+    FactorModel loaded = FactorModel.get(datastore, "groceri");
+    assertNotSame(trained, loaded);
+    assertEquals(Arrays.asList("001", "002", "003", "004", "005"), loaded.getUserIDs());
+    assertEquals(items, loaded.getItems());
+    assertArrayEquals(trained.getUserFeatures(), loaded.getUserFeatures(), 0.0);
+    assertArrayEquals(trained.getItemFeatures(), loaded.getItemFeatures(), 0.0);
+  }
+
+  /** Checks that a model larger than one entity is split into shards and read back whole. */
+  @Test
+  public void testLargeModelSharded() throws Exception {
+    List<String> userIDs = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      userIDs.add(String.format("%05d", i));
+    }
+    double[] userFeatures = new double[3000 * 45];
+    for (int i = 0; i < userFeatures.length; i++) {
+      userFeatures[i] = i * 0.5;
+    }
+    FactorModel model = new FactorModel(45, userIDs, items, userFeatures, new double[4 * 45]);
+    FactorModel.put(datastore, "groceri", model);
+    assertEquals(
+        2, datastore.prepare(new Query("FactorModelShard")).countEntities(withDefaults()));
+
+    FactorModel.clear();
+    FactorModel loaded = FactorModel.get(datastore, "groceri");
+    assertEquals(userIDs, loaded.getUserIDs());
+    assertArrayEquals(userFeatures, loaded.getUserFeatures(), 0.0);
+    assertEquals(Long.valueOf(1), FactorModel.getStatus(datastore, "groceri").get("version"));
+  }
+
+  /**
+   * Checks that a model stored by another instance replaces the cached model and the shards of the
+   * previous model.
+   */
+  @Test
+  public void testNewerModelReloaded() throws Exception {
+    FactorModel first =
+        new FactorModel(1, Arrays.asList("1"), items, new double[1], new double[4]);
+    FactorModel.put(datastore, "groceri", first);
+    assertSame(first, FactorModel.get(datastore, "groceri"));
+
+    FactorModel.write(
+        datastore,
+        "groceri",
+        new FactorModel(1, Arrays.asList("1", "2"), items, new double[2], new double[4]));
+    assertEquals(Arrays.asList("1", "2"), FactorModel.get(datastore, "groceri").getUserIDs());
+    assertEquals(Long.valueOf(2), FactorModel.getStatus(datastore, "groceri").get("version"));
+    assertEquals(
+        1, datastore.prepare(new Query("FactorModelShard")).countEntities(withDefaults()));
+  }
+
+  /**
+   * Checks that retraining a large category starts from the previous factors of its users and
+   * items, and that new users and items start from random factors.
+   */
+  @Test
+  public void testWarmStart() throws Exception {
+    storeUsers(items, 120);
+    train(new Recommender(2, new AlsFactorizer(2, 30, 0.02)), items);
+    FactorModel previous = FactorModel.get(datastore, "groceri");
+
+    List<String> newItems = Arrays.asList("appl", "banana", "carrot", "donut", "egg");
+    storeUsers(newItems, 121);
+    RecordingSolver solver = new RecordingSolver(new AlsFactorizer(2, 30, 0.02));
+    train(new Recommender(2, solver), newItems);
+
+    for (int user = 0; user < 120; user++) {
+      for (int k = 0; k < 2; k++) {
+        assertEquals(
+            previous.getUserFeatures()[user * 2 + k], solver.initialUsers[user * 2 + k], 0.0);
+      }
+    }
+    for (int item = 0; item < 4; item++) {
+      for (int k = 0; k < 2; k++) {
+        assertEquals(
+            previous.getItemFeatures()[item * 2 + k], solver.initialItems[item * 2 + k], 0.0);
+      }
+    }
+    assertNotEquals(0.0, solver.initialUsers[120 * 2], 0.0);
+    assertNotEquals(0.0, solver.initialItems[4 * 2], 0.0);
+    FactorModel model = FactorModel.get(datastore, "groceri");
+    assertEquals(121, model.getUserIDs().size());
+    assertEquals(newItems, model.getItems());
+    List<Pair<String, Double>> predictions =
+        Recommender.getPredictions(
+            datastore.get(KeyFactory.createKey("UserPredictions-groceri", "121")));
+    assertTrue(predictions.stream().anyMatch(prediction -> prediction.getKey().equals("egg")));
+  }
+
+  /** Checks that small categories always start from the same random factors. */
+  @Test
+  public void testNoWarmStartForSmallCategories() throws Exception {
+    storeUsers(items, 5);
+    RecordingSolver first = new RecordingSolver(new AlsFactorizer(2, 30, 0.02));
+    train(new Recommender(2, first), items);
+    RecordingSolver second = new RecordingSolver(new AlsFactorizer(2, 30, 0.02));
+    train(new Recommender(2, second), items);
+    assertArrayEquals(first.initialUsers, second.initialUsers, 0.0);
+    assertArrayEquals(first.initialItems, second.initialItems, 0.0);
+  }
+
+  /** Stores users 1 to numUsers, cycling through the rows of the data. */
+  private void storeUsers(List<String> userItems, int numUsers) {
+    for (int i = 0; i < numUsers; i++) {
+      Entity user = new Entity("Frac-groceri", String.format("%03d", i + 1));
+      user.setProperty("userID", String.format("%03d", i + 1));
+      for (int j = 0; j < userItems.size(); j++) {
+        double value = j < 4 ? data[i % 5][j] : (i % 2) * 1.0;
+        user.setProperty(userItems.get(j), value);
+      }
+      datastore.put(user);
+    }
+  }
+
+  /** Trains the groceri category on the stored users. */
+  private void train(Recommender recommender, List<String> trainItems) throws Exception {
+    recommender.makeRecommendations(
+        datastore,
+        "groceri",
+        TestHelper.fetchDatastoreAllUsers(datastore, "Frac-groceri"),
+        new HashSet<String>(trainItems));
+  }
+
+  /** Solver that records the initial factors it is given. */
+  private static class RecordingSolver implements FactorizationSolver {
+    private final FactorizationSolver solver;
+    private double[] initialUsers;
+    private double[] initialItems;
+
+    RecordingSolver(FactorizationSolver solver) {
+      this.solver = solver;
+    }
+
+    @Override
+    public double[] factorize(SparseMatrix data, double[] userFeatures, double[] itemFeatures) {
+      initialUsers = userFeatures.clone();
+      initialItems = itemFeatures.clone();
+      return solver.factorize(data, userFeatures, itemFeatures);
+    }
+  }
+}
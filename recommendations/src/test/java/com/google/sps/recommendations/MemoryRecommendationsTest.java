@@ -22,10 +22,12 @@ import static org.mockito.Mockito.*;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import org.junit.After;
@@ -35,6 +37,8 @@ import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 
 @RunWith(MockitoJUnitRunner.Silent.class)
 public class MemoryRecommendationsTest {
@@ -47,6 +51,7 @@ public class MemoryRecommendationsTest {
   @Before
   public void setUp() {
     helper.setUp();
+    FactorModel.clear();
     datastore = DatastoreServiceFactory.getDatastoreService();
   }
 
@@ -189,6 +194,11 @@ public class MemoryRecommendationsTest {
         formatResult(
             RecommendationUtils.makePastRecommendations(
                 "1", datastore, StemUtils.stemmed("grocery"))));
+    assertEquals(
+        "apple, ice cream, and pineapple",
+        formatResult(
+            RecommendationUtils.makeTopPastRecommendations(
+                "1", datastore, StemUtils.stemmed("grocery"), 3)));
 
     TestHelper.checkAggregate(
         datastore,
@@ -240,52 +250,47 @@ public class MemoryRecommendationsTest {
         datastore,
         "1",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 4),
-                new Pair<String, Integer>("banana", 2),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 1)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 4),
+            new Pair<String, Integer>("banana", 2),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 1)));
     TestHelper.makeUserList(
         datastore,
         "2",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 4),
-                new Pair<String, Integer>("banana", 0),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 1)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 4),
+            new Pair<String, Integer>("banana", 0),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 1)));
     TestHelper.makeUserList(
         datastore,
         "3",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 1),
-                new Pair<String, Integer>("banana", 1),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 5)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 1),
+            new Pair<String, Integer>("banana", 1),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 5)));
     TestHelper.makeUserList(
         datastore,
         "4",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 1),
-                new Pair<String, Integer>("banana", 0),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 4)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 1),
+            new Pair<String, Integer>("banana", 0),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 4)));
     TestHelper.makeUserList(
         datastore,
         "5",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 0),
-                new Pair<String, Integer>("banana", 1),
-                new Pair<String, Integer>("carrot", 5),
-                new Pair<String, Integer>("donut", 4)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 0),
+            new Pair<String, Integer>("banana", 1),
+            new Pair<String, Integer>("carrot", 5),
+            new Pair<String, Integer>("donut", 4)));
 
     DatabaseUtils.storeUserListInformation(
         datastore, "1", StemUtils.stemmed("grocery"), Arrays.asList("apple", "banana"), true);
@@ -311,71 +316,175 @@ public class MemoryRecommendationsTest {
   @Test
   public void testUser2Recommendations() throws Exception {
 
+    makeUser2History();
+
+    DatabaseUtils.storeUserListInformation(
+        datastore, "2", StemUtils.stemmed("grocery"), Arrays.asList("apple"), true);
+    assertEquals(
+        "banana",
+        formatResult(
+            RecommendationUtils.makeUserRecommendations(
+                "2", datastore, StemUtils.stemmed("grocery")),
+            StemUtils.stemmedList(Arrays.asList("apple"))));
+
+    List<Pair<String, Double>> expectedItems =
+        RecommendationUtils.makeUserRecommendations("2", datastore, StemUtils.stemmed("grocery"))
+            .stream()
+            .filter(e -> !e.getKey().equals("apple"))
+            .limit(2)
+            .collect(Collectors.toList());
+    List<Pair<String, Double>> topItems =
+        RecommendationUtils.makeTopUserRecommendations(
+            "2",
+            datastore,
+            StemUtils.stemmed("grocery"),
+            2,
+            StemUtils.stemmedList(Arrays.asList("apple")));
+    assertEquals(2, topItems.size());
+    for (int i = 0; i < 2; i++) {
+      assertEquals(expectedItems.get(i).getKey(), topItems.get(i).getKey());
+      assertEquals(expectedItems.get(i).getValue(), topItems.get(i).getValue());
+    }
+    assertEquals("banana", topItems.get(0).getKey());
+  }
+
+  /**
+   * Tests bulk recommendations for the users of testUser2Recommendations: each lookup matches its
+   * single-lookup endpoint, users without predictions get no recommendations, and predictions
+   * stored in the legacy per-item format are still read.
+   */
+  @Test
+  public void testBulkRecommendations() throws Exception {
+    makeUser2History();
+    DatabaseUtils.storeUserListInformation(
+        datastore, "2", StemUtils.stemmed("grocery"), Arrays.asList("apple"), true);
+    Entity legacy = new Entity("UserPredictions-" + StemUtils.stemmed("grocery"), "7");
+    legacy.setProperty(StemUtils.stemmed("donut"), 1.5);
+    legacy.setProperty(StemUtils.stemmed("banana"), 2.5);
+    datastore.put(legacy);
+
+    List<List<Pair<String, Double>>> bulkItems =
+        RecommendationUtils.makeBulkRecommendations(
+            datastore,
+            Arrays.asList(
+                makeRequest("2", "general", 2, StemUtils.stemmedList(Arrays.asList("apple"))),
+                makeRequest("5", "past", 3, Collections.<String>emptyList()),
+                makeRequest("6", "general", 3, Collections.<String>emptyList()),
+                makeRequest("7", "general", 3, Collections.<String>emptyList())));
+    assertEquals(4, bulkItems.size());
+    assertEquals(
+        formatResult(
+            RecommendationUtils.makeTopUserRecommendations(
+                "2",
+                datastore,
+                StemUtils.stemmed("grocery"),
+                2,
+                StemUtils.stemmedList(Arrays.asList("apple")))),
+        formatResult(bulkItems.get(0)));
+    assertEquals(
+        formatResult(
+            RecommendationUtils.makeTopPastRecommendations(
+                "5", datastore, StemUtils.stemmed("grocery"), 3)),
+        formatResult(bulkItems.get(1)));
+    assertTrue(bulkItems.get(2).isEmpty());
+    assertEquals("banana and donut", formatResult(bulkItems.get(3)));
+  }
+
+  /** Tests that a bulk request with an unknown recommendation mode is rejected. */
+  @Test
+  public void testBulkRecommendationsInvalidMode() throws Exception {
+    ResponseEntity<List<List<Pair<String, Double>>>> response =
+        new RecommendationsController()
+            .bulkUserRecs(
+                Arrays.asList(
+                    makeRequest("2", "general", 2, Collections.<String>emptyList()),
+                    makeRequest("2", "similar", 2, Collections.<String>emptyList())));
+    assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+  }
+
+  /**
+   * Tests that the retraining task succeeds for a category with too few users, so that the task
+   * queue does not retry a retrain that would fail again, and that other requests are rejected.
+   */
+  @Test
+  public void testRetrainSmallCategory() throws Exception {
+    TestHelper.makeUserList(
+        datastore,
+        "1",
+        4,
+        Arrays.asList(new Pair<String, Integer>("apple", 4)));
+    RecommendationsController controller = new RecommendationsController();
+    assertEquals(
+        HttpStatus.OK,
+        controller.retrain(RetrainingScheduler.QUEUE_NAME, "groceri").getStatusCode());
+    assertEquals(HttpStatus.FORBIDDEN, controller.retrain(null, "groceri").getStatusCode());
+  }
+
+  /** Creates the grocery list histories of users 1 to 5 used by testUser2Recommendations. */
+  private void makeUser2History() {
     // Creates User 1 with history: 1 for item 1, 0.6 for item 2, and 0.2 for item 4.
     TestHelper.makeUserList(
         datastore,
         "1",
         4,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 4),
-                new Pair<String, Integer>("banana", 3),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 1)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 4),
+            new Pair<String, Integer>("banana", 3),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 1)));
     TestHelper.makeUserList(
         datastore,
         "2",
         4,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 3),
-                new Pair<String, Integer>("banana", 0),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 1)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 3),
+            new Pair<String, Integer>("banana", 0),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 1)));
     TestHelper.makeUserList(
         datastore,
         "3",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 1),
-                new Pair<String, Integer>("banana", 1),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 5)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 1),
+            new Pair<String, Integer>("banana", 1),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 5)));
     TestHelper.makeUserList(
         datastore,
         "4",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 1),
-                new Pair<String, Integer>("banana", 0),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 4)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 1),
+            new Pair<String, Integer>("banana", 0),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 4)));
     TestHelper.makeUserList(
         datastore,
         "5",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 0),
-                new Pair<String, Integer>("banana", 1),
-                new Pair<String, Integer>("carrot", 5),
-                new Pair<String, Integer>("donut", 4)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 0),
+            new Pair<String, Integer>("banana", 1),
+            new Pair<String, Integer>("carrot", 5),
+            new Pair<String, Integer>("donut", 4)));
+  }
 
-    DatabaseUtils.storeUserListInformation(
-        datastore, "2", StemUtils.stemmed("grocery"), Arrays.asList("apple"), true);
-    assertEquals(
-        "banana",
-        formatResult(
-            RecommendationUtils.makeUserRecommendations(
-                "2", datastore, StemUtils.stemmed("grocery")),
-            StemUtils.stemmedList(Arrays.asList("apple"))));
+  private static RecommendationRequest makeRequest(
+      String userID, String mode, int k, List<String> exclude) {
+    RecommendationRequest request = new RecommendationRequest();
+    request.setUserID(userID);
+    request.setStemmedListName(StemUtils.stemmed("grocery"));
+    request.setMode(mode);
+    request.setK(k);
+    request.setExclude(exclude);
+    return request;
   }
 
   /**
    * Tests recommendations against other users: 1) create 5 users, 2) make a new list, and 3) assert
-   * that correct recommendation for carrot and donut is returned for user 4.
+   * that correct recommendation for carrot is returned for user 4. Donut is already part of user
+   * 4's lists, so it is not recommended.
    */
   @Test
   public void testUser4Recommendations() throws Exception {
@@ -385,57 +494,52 @@ public class MemoryRecommendationsTest {
         datastore,
         "1",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 5),
-                new Pair<String, Integer>("banana", 3),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 1)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 5),
+            new Pair<String, Integer>("banana", 3),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 1)));
     TestHelper.makeUserList(
         datastore,
         "2",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 4),
-                new Pair<String, Integer>("banana", 0),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 1)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 4),
+            new Pair<String, Integer>("banana", 0),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 1)));
     TestHelper.makeUserList(
         datastore,
         "3",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 1),
-                new Pair<String, Integer>("banana", 1),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 5)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 1),
+            new Pair<String, Integer>("banana", 1),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 5)));
     TestHelper.makeUserList(
         datastore,
         "4",
         4,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 1),
-                new Pair<String, Integer>("banana", 0),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 4)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 1),
+            new Pair<String, Integer>("banana", 0),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 4)));
     TestHelper.makeUserList(
         datastore,
         "5",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 0),
-                new Pair<String, Integer>("banana", 1),
-                new Pair<String, Integer>("carrot", 5),
-                new Pair<String, Integer>("donut", 4)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 0),
+            new Pair<String, Integer>("banana", 1),
+            new Pair<String, Integer>("carrot", 5),
+            new Pair<String, Integer>("donut", 4)));
 
     DatabaseUtils.storeUserListInformation(
         datastore, "4", StemUtils.stemmed("grocery"), Arrays.asList("egg"), true);
     assertEquals(
-        "carrot and donut",
+        "carrot",
         formatResult(
             RecommendationUtils.makeUserRecommendations(
                 "4", datastore, StemUtils.stemmed("grocery")),
@@ -448,12 +552,11 @@ public class MemoryRecommendationsTest {
         datastore,
         "1",
         4,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 4),
-                new Pair<String, Integer>("banana", 3),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 1)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 4),
+            new Pair<String, Integer>("banana", 3),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 1)));
     DatabaseUtils.updateFractionalAggregation(
         datastore, "1", "groceri", Arrays.asList("apple", "banana", "carrot"), 4, false, false);
 
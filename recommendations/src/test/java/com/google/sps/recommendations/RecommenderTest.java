@@ -21,13 +21,17 @@ import static org.junit.Assert.*;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.ejml.simple.SimpleMatrix;
 import org.junit.After;
 import org.junit.Before;
@@ -57,6 +61,7 @@ public final class RecommenderTest {
   @Before
   public void setUp() {
     helper.setUp();
+    FactorModel.clear();
     datastore = DatastoreServiceFactory.getDatastoreService();
   }
 
@@ -90,6 +95,83 @@ public final class RecommenderTest {
     }
   }
 
+  /**
+   * Tests that the flat array SGD kernel produces exactly the same predictions as the original EJML
+   * implementation of matrix factorization when early stopping is disabled.
+   */
+  @Test
+  public void testFactorizationMatchesEjmlReference() throws Exception {
+    SimpleMatrix userFeatures =
+        SimpleMatrix.random_DDRM(dataMatrix.numRows(), 2, -2.0, 2.0, new Random(1));
+    SimpleMatrix itemFeatures =
+        SimpleMatrix.random_DDRM(2, dataMatrix.numCols(), -2.0, 2.0, new Random(1));
+    double[] userFactors = userFeatures.getDDRM().getData().clone();
+    double[] itemFactors = itemFeatures.transpose().getDDRM().getData().clone();
+
+    SgdFactorizer factorizer = new SgdFactorizer(2, 10000, 0.1, 0.02, 1, 0);
+    int epochs =
+        factorizer.train(SparseMatrix.fromDense(dataMatrix, 0.01), userFactors, itemFactors);
+    assertEquals(10000, epochs);
+    double[] predictions = FactorizationSolver.predict(userFactors, itemFactors, 2);
+    SimpleMatrix expectedResults = ejmlFactorization(dataMatrix, userFeatures, itemFeatures);
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 4; j++) {
+        assertEquals(expectedResults.get(i, j), predictions[i * 4 + j], 0.0);
+      }
+    }
+  }
+
+  /**
+   * Tests that training stops well before the maximum number of epochs once the error stops
+   * improving, and that the observed entries are still fit as closely as by a full run.
+   */
+  @Test
+  public void testFactorizationStopsEarly() throws Exception {
+    SimpleMatrix userFeatures =
+        SimpleMatrix.random_DDRM(dataMatrix.numRows(), 2, -2.0, 2.0, new Random(1));
+    SimpleMatrix itemFeatures =
+        SimpleMatrix.random_DDRM(2, dataMatrix.numCols(), -2.0, 2.0, new Random(1));
+    double[] userFactors = userFeatures.getDDRM().getData().clone();
+    double[] itemFactors = itemFeatures.transpose().getDDRM().getData().clone();
+
+    SgdFactorizer factorizer = new SgdFactorizer(2, 10000, 0.1, 0.02, 10, 3);
+    int epochs =
+        factorizer.train(SparseMatrix.fromDense(dataMatrix, 0.01), userFactors, itemFactors);
+    assertTrue(epochs < 6000);
+    assertEquals(0, epochs % 10);
+    double[] predictions = FactorizationSolver.predict(userFactors, itemFactors, 2);
+    SimpleMatrix expectedResults = ejmlFactorization(dataMatrix, userFeatures, itemFeatures);
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 4; j++) {
+        if (dataMatrix.get(i, j) > 0.01) {
+          assertEquals(expectedResults.get(i, j), predictions[i * 4 + j], 0.05);
+        }
+      }
+    }
+  }
+
+  /** Tests that the ALS solver fits the observed entries and predicts like SGD. */
+  @Test
+  public void testAlsFactorization() throws Exception {
+    SimpleMatrix userFeatures =
+        SimpleMatrix.random_DDRM(dataMatrix.numRows(), 2, -2.0, 2.0, new Random(1));
+    SimpleMatrix itemFeatures =
+        SimpleMatrix.random_DDRM(2, dataMatrix.numCols(), -2.0, 2.0, new Random(1));
+
+    Recommender rec = new Recommender(2, new AlsFactorizer(2, 30, 0.02));
+    SimpleMatrix predictedResults = rec.matrixFactorization(dataMatrix, userFeatures, itemFeatures);
+    SimpleMatrix expectedResults =
+        new Recommender(2).matrixFactorization(dataMatrix, userFeatures, itemFeatures);
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 4; j++) {
+        if (dataMatrix.get(i, j) > 0.01) {
+          assertEquals(dataMatrix.get(i, j), predictedResults.get(i, j), 0.5);
+        }
+        assertEquals(expectedResults.get(i, j) > 2.5, predictedResults.get(i, j) > 2.5);
+      }
+    }
+  }
+
   /** Create 5 user database entries and check that matrix is properly created from the data. */
   @Test
   public void testMatrixCreation() throws Exception {
@@ -101,52 +183,47 @@ public final class RecommenderTest {
         datastore,
         "1",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 5),
-                new Pair<String, Integer>("banana", 3),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 1)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 5),
+            new Pair<String, Integer>("banana", 3),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 1)));
     TestHelper.makeUserList(
         datastore,
         "2",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 4),
-                new Pair<String, Integer>("banana", 0),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 1)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 4),
+            new Pair<String, Integer>("banana", 0),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 1)));
     TestHelper.makeUserList(
         datastore,
         "3",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 1),
-                new Pair<String, Integer>("banana", 1),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 5)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 1),
+            new Pair<String, Integer>("banana", 1),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 5)));
     TestHelper.makeUserList(
         datastore,
         "4",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 1),
-                new Pair<String, Integer>("banana", 0),
-                new Pair<String, Integer>("carrot", 0),
-                new Pair<String, Integer>("donut", 4)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 1),
+            new Pair<String, Integer>("banana", 0),
+            new Pair<String, Integer>("carrot", 0),
+            new Pair<String, Integer>("donut", 4)));
     TestHelper.makeUserList(
         datastore,
         "5",
         5,
-        (List<Pair<String, Integer>>)
-            Arrays.asList(
-                new Pair<String, Integer>("apple", 0),
-                new Pair<String, Integer>("banana", 1),
-                new Pair<String, Integer>("carrot", 5),
-                new Pair<String, Integer>("donut", 4)));
+        Arrays.asList(
+            new Pair<String, Integer>("apple", 0),
+            new Pair<String, Integer>("banana", 1),
+            new Pair<String, Integer>("carrot", 5),
+            new Pair<String, Integer>("donut", 4)));
     TestHelper.checkFracAggregate(
         datastore,
         "groceri",
@@ -168,7 +245,7 @@ public final class RecommenderTest {
 
     List<Entity> entities = TestHelper.fetchDatastoreAllUsers(datastore, "Frac-groceri");
     Recommender rec = new Recommender();
-    SimpleMatrix matrix =
+    SparseMatrix matrix =
         rec.createMatrixFromDatabaseEntities(
             entities, new HashSet<String>(StemUtils.stemmedList(items)));
     for (int i = 0; i < 5; i++) {
@@ -182,4 +259,193 @@ public final class RecommenderTest {
       }
     }
   }
+
+  /** Checks that predictions are read from the per-item properties of legacy entities. */
+  @Test
+  public void testLegacyPredictions() throws Exception {
+    Entity legacy = new Entity("UserPredictions-groceri", "1");
+    legacy.setProperty("appl", 0.5);
+    legacy.setProperty("banana", 2.5);
+    legacy.setProperty("carrot", 1.5);
+    List<Pair<String, Double>> predictions = Recommender.getPredictions(legacy);
+    assertEquals(3, predictions.size());
+    assertEquals("banana", predictions.get(0).getKey());
+    assertEquals("carrot", predictions.get(1).getKey());
+    assertEquals(0.5, predictions.get(2).getValue(), 0.0);
+  }
+
+  /** Checks that a user is folded into the trained model without retraining the other users. */
+  @Test
+  public void testFoldInUser() throws Exception {
+    assertFalse(Recommender.foldInUser(datastore, "groceri", new Entity("Frac-groceri", "6")));
+    for (int i = 0; i < 5; i++) {
+      Entity user = new Entity("Frac-groceri", String.valueOf(i + 1));
+      user.setProperty("userID", String.valueOf(i + 1));
+      for (int j = 0; j < 4; j++) {
+        user.setProperty(String.valueOf(j), dataMatrix.get(i, j));
+      }
+      datastore.put(user);
+    }
+    Recommender rec = new Recommender();
+    rec.makeRecommendations(
+        datastore,
+        "groceri",
+        TestHelper.fetchDatastoreAllUsers(datastore, "Frac-groceri"),
+        new HashSet<String>(Arrays.asList("0", "1", "2", "3")));
+    Entity trainedPrediction = datastore.get(KeyFactory.createKey("UserPredictions-groceri", "5"));
+
+    Entity newUser = new Entity("Frac-groceri", "6");
+    newUser.setProperty("userID", "6");
+    newUser.setProperty("0", 5.0);
+    newUser.setProperty("1", 3.0);
+    newUser.setProperty("kale", 1.0);
+    assertTrue(Recommender.foldInUser(datastore, "groceri", newUser));
+
+    Map<String, Double> prediction =
+        predictionMap(datastore.get(KeyFactory.createKey("UserPredictions-groceri", "6")));
+    assertEquals(new HashSet<String>(Arrays.asList("2", "3")), prediction.keySet());
+    assertTrue(prediction.get("3") < 2.5);
+    assertEquals(
+        trainedPrediction,
+        datastore.get(KeyFactory.createKey("UserPredictions-groceri", "5")));
+  }
+
+  /**
+   * Builds the matrix of a 10000 user x 2000 item category, with 20 items per user, and logs the
+   * construction time to track matrix building performance.
+   */
+  @Test
+  public void testLargeMatrixCreation() throws Exception {
+    int numUsers = 10000;
+    int numItems = 2000;
+    Set<String> uniqueItems = new HashSet<>();
+    for (int j = 0; j < numItems; j++) {
+      uniqueItems.add("item" + j);
+    }
+    Random random = new Random(1);
+    List<Entity> entities = new ArrayList<>();
+    for (int i = 0; i < numUsers; i++) {
+      Entity entity = new Entity("Frac-groceri", String.valueOf(i));
+      entity.setProperty("userID", String.valueOf(i));
+      entity.setProperty("listName", "groceri");
+      entity.setProperty("count", 3L);
+      entity.setProperty("timestamp", 0L);
+      for (int j = 0; j < 20; j++) {
+        entity.setProperty("item" + random.nextInt(numItems), 0.5);
+      }
+      entities.add(entity);
+    }
+
+    long start = System.nanoTime();
+    SparseMatrix matrix = new Recommender().createMatrixFromDatabaseEntities(entities, uniqueItems);
+    log.info("Built " + matrix + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+    assertEquals(numUsers, matrix.numRows());
+    assertEquals(numItems, matrix.numCols());
+    int expectedNonZeros = 0;
+    for (Entity entity : entities) {
+      expectedNonZeros += entity.getProperties().size() - 4;
+    }
+    assertEquals(expectedNonZeros, matrix.nonZeros());
+  }
+
+  /** Checks that prediction entities only hold the highest predictions, in descending order. */
+  @Test
+  public void testPredictionEntityKeepsTopItems() throws Exception {
+    List<String> items = new ArrayList<>();
+    double[] predictions = new double[2 + 80];
+    for (int j = 0; j < 80; j++) {
+      items.add("item" + j);
+      predictions[2 + j] = (j * 37) % 80 / 10.0;
+    }
+    List<Pair<String, Double>> stored =
+        Recommender.getPredictions(
+            Recommender.makePredictionEntity(
+                "groceri", "1", items, predictions, 2, ownedItems(80), 0));
+    assertEquals(50, stored.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals(7.9 - i / 10.0, stored.get(i).getValue(), 1e-6);
+      assertEquals(
+          7.9 - i / 10.0, predictions[2 + items.indexOf(stored.get(i).getKey())], 1e-6);
+    }
+  }
+
+  /** Checks that items the user already has are not stored, although their predictions are high. */
+  @Test
+  public void testPredictionEntitySkipsOwnedItems() throws Exception {
+    List<String> items = new ArrayList<>();
+    double[] predictions = new double[80];
+    for (int j = 0; j < 80; j++) {
+      items.add("item" + j);
+      predictions[j] = j < 60 ? 10.0 + j : j / 10.0;
+    }
+    int[] owned = new int[60];
+    for (int j = 0; j < 60; j++) {
+      owned[j] = j;
+    }
+    List<Pair<String, Double>> stored =
+        Recommender.getPredictions(
+            Recommender.makePredictionEntity(
+                "groceri", "1", items, predictions, 0, ownedItems(80, owned), 0));
+    assertEquals(20, stored.size());
+    for (int i = 0; i < 20; i++) {
+      assertEquals("item" + (79 - i), stored.get(i).getKey());
+    }
+  }
+
+  /** Returns a single row data matrix in which the user has the given item columns. */
+  private SparseMatrix ownedItems(int numItems, int... cols) {
+    SparseMatrix.Builder builder = new SparseMatrix.Builder(1, numItems, 0.01);
+    for (int col : cols) {
+      builder.add(col, 1.0);
+    }
+    builder.endRow();
+    return builder.build();
+  }
+
+  /** Returns the stored predictions of a UserPredictions entity by item. */
+  private Map<String, Double> predictionMap(Entity entity) {
+    Map<String, Double> predictions = new HashMap<>();
+    for (Pair<String, Double> prediction : Recommender.getPredictions(entity)) {
+      predictions.put(prediction.getKey(), prediction.getValue());
+    }
+    return predictions;
+  }
+
+  /** Original EJML implementation of Recommender.matrixFactorization used as a reference. */
+  private SimpleMatrix ejmlFactorization(
+      SimpleMatrix dataMatrix, SimpleMatrix userFeatures, SimpleMatrix itemFeatures) {
+    double alpha = 0.1;
+    double beta = 0.02;
+    for (int step = 0; step < 10000; step++) {
+      double learningRate = Math.max(alpha / (Math.sqrt(step + 1)), 0.005);
+      for (int row = 0; row < dataMatrix.numRows(); row++) {
+        for (int col = 0; col < dataMatrix.numCols(); col++) {
+          double element = dataMatrix.get(row, col);
+          if (Math.abs(element - 0.0) > 0.01) {
+            double error =
+                element
+                    - userFeatures
+                        .extractVector(true, row)
+                        .dot(itemFeatures.extractVector(false, col));
+            for (int k = 0; k < 2; k++) {
+              double userFeatures_ik = userFeatures.get(row, k);
+              double itemFeatures_kj = itemFeatures.get(k, col);
+              userFeatures.set(
+                  row,
+                  k,
+                  userFeatures_ik
+                      + learningRate * (2 * error * itemFeatures_kj - beta * userFeatures_ik));
+              itemFeatures.set(
+                  k,
+                  col,
+                  itemFeatures_kj
+                      + learningRate * (2 * error * userFeatures_ik - beta * itemFeatures_kj));
+            }
+          }
+        }
+      }
+    }
+    return userFeatures.mult(itemFeatures);
+  }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class RetrainingSchedulerTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalTaskQueueTestConfig()
+              .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml")
+              .setDisableAutoTaskExecution(true));
+  private AtomicInteger trainCount;
+  private RetrainingScheduler scheduler;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    trainCount = new AtomicInteger();
+    scheduler =
+        new RetrainingScheduler(
+            (datastore, stemmedListName) -> trainCount.incrementAndGet(), 100, 60000, false);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  /** Tests that a burst of writes adds a single retraining task and does not train inline. */
+  @Test
+  public void testBurstIsCoalesced() throws Exception {
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 10; i++) {
+      assertTrue(scheduler.markDirty(null, "groceri"));
+    }
+    assertEquals(0, trainCount.get());
+    assertTrue(scheduler.isDirty("groceri", 0));
+
+    List<TaskStateInfo> tasks = getTasks();
+    assertEquals(1, tasks.size());
+    assertEquals(
+        RetrainingScheduler.taskName("groceri", start, 60000), tasks.get(0).getTaskName());
+    assertTrue(tasks.get(0).getEtaMillis() >= start + 100);
+    assertTrue(tasks.get(0).getBody().contains("stemmedListName=groceri"));
+  }
+
+  /** Tests that each category gets its own task and that a new interval adds a new task. */
+  @Test
+  public void testRetrainedOncePerInterval() throws Exception {
+    scheduler =
+        new RetrainingScheduler(
+            (datastore, stemmedListName) -> trainCount.incrementAndGet(), 10, 200, false);
+    scheduler.markDirty(null, "groceri");
+    scheduler.markDirty(null, "crème brûlée");
+    assertEquals(2, getTasks().size());
+
+    Thread.sleep(250);
+    scheduler.markDirty(null, "groceri");
+    assertEquals(3, getTasks().size());
+    assertEquals(0, trainCount.get());
+  }
+
+  /**
+   * Tests that the retraining task trains the category and only reports transient failures, so
+   * that failures that would happen again are not retried.
+   */
+  @Test
+  public void testRetrain() throws Exception {
+    assertTrue(scheduler.retrain(null, "groceri"));
+    assertEquals(1, trainCount.get());
+
+    RetrainingScheduler failing =
+        new RetrainingScheduler(
+            (datastore, stemmedListName) -> {
+              throw new IllegalStateException("No items");
+            },
+            100,
+            60000,
+            false);
+    assertTrue(failing.retrain(null, "groceri"));
+
+    RetrainingScheduler timingOut =
+        new RetrainingScheduler(
+            (datastore, stemmedListName) -> {
+              throw new DatastoreTimeoutException("Timed out");
+            },
+            100,
+            60000,
+            false);
+    assertFalse(timingOut.retrain(null, "groceri"));
+  }
+
+  /** Tests that categories are retrained immediately in synchronous mode. */
+  @Test
+  public void testSynchronousMode() throws Exception {
+    scheduler.setSynchronous(true);
+    assertFalse(scheduler.markDirty(null, "groceri"));
+    assertFalse(scheduler.markDirty(null, "groceri"));
+    assertEquals(2, trainCount.get());
+    assertTrue(getTasks().isEmpty());
+    assertFalse(scheduler.isDirty("office", 0));
+    assertFalse(scheduler.isDirty("groceri", System.currentTimeMillis() + 1));
+  }
+
+  private List<TaskStateInfo> getTasks() {
+    LocalTaskQueue queue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+    return queue.getQueueStateInfo().get(RetrainingScheduler.QUEUE_NAME).getTaskInfo();
+  }
+}
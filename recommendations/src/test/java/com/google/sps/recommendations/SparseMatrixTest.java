@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import static org.junit.Assert.*;
+
+import org.ejml.simple.SimpleMatrix;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class SparseMatrixTest {
+
+  /** Tests that rows built with unordered columns are stored in column order. */
+  @Test
+  public void testBuilderOrdersColumns() throws Exception {
+    SparseMatrix.Builder builder = new SparseMatrix.Builder(2, 4, 0.01);
+    builder.add(3, 1.0);
+    builder.add(0, 0.5);
+    builder.add(2, 0.005);
+    builder.endRow();
+    builder.add(1, 0.6);
+    builder.endRow();
+    SparseMatrix matrix = builder.build();
+
+    assertEquals(3, matrix.nonZeros());
+    assertEquals(0, matrix.rowStart(0));
+    assertEquals(2, matrix.rowEnd(0));
+    assertEquals(0, matrix.col(0));
+    assertEquals(3, matrix.col(1));
+    assertEquals(0.5, matrix.get(0, 0), 0.0);
+    assertEquals(0.0, matrix.get(0, 2), 0.0);
+    assertEquals(1.0, matrix.get(0, 3), 0.0);
+    assertEquals(0.6, matrix.get(1, 1), 0.0);
+    assertEquals(0.0, matrix.get(1, 3), 0.0);
+  }
+
+  /** Tests conversion from and to dense matrices. */
+  @Test
+  public void testDenseConversion() throws Exception {
+    SimpleMatrix dense =
+        new SimpleMatrix(
+            3, 3, true, new double[] {1.0, 0.0, 2.0, 0.0, 0.0, 0.0, 0.0, 3.0, 0.001});
+    SparseMatrix matrix = SparseMatrix.fromDense(dense, 0.01);
+
+    assertEquals(3, matrix.nonZeros());
+    assertEquals(matrix.rowStart(1), matrix.rowEnd(1));
+    SimpleMatrix expected =
+        new SimpleMatrix(3, 3, true, new double[] {1.0, 0.0, 2.0, 0.0, 0.0, 0.0, 0.0, 3.0, 0.0});
+    assertTrue(expected.isIdentical(matrix.toDense(), 0.0));
+  }
+
+  /** Tests that transposing swaps rows and columns. */
+  @Test
+  public void testTranspose() throws Exception {
+    SimpleMatrix dense =
+        new SimpleMatrix(2, 3, true, new double[] {1.0, 0.0, 2.0, 0.0, 3.0, 4.0});
+    SparseMatrix transposed = SparseMatrix.fromDense(dense, 0.01).transpose();
+
+    assertEquals(3, transposed.numRows());
+    assertEquals(2, transposed.numCols());
+    assertTrue(dense.transpose().isIdentical(transposed.toDense(), 0.0));
+    assertEquals(2, transposed.rowEnd(2) - transposed.rowStart(2));
+  }
+
+  /** Tests that a matrix cannot be built before all rows are ended. */
+  @Test(expected = IllegalStateException.class)
+  public void testIncompleteBuild() throws Exception {
+    SparseMatrix.Builder builder = new SparseMatrix.Builder(2, 2, 0.01);
+    builder.endRow();
+    builder.build();
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sps.recommendations;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@RunWith(JUnit4.class)
+public final class StemDictionaryTest {
+
+  private static Logger log = LoggerFactory.getLogger(StemDictionaryTest.class);
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+  private DatastoreService datastore;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    StemDictionary.clear();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  /** Checks that words are unstemmed from the user's dictionary before the universal one. */
+  @Test
+  public void testUnstem() {
+    StemDictionary.saveWords(datastore, "1", Arrays.asList("apples", "Bananas"));
+    StemDictionary.saveWords(datastore, "2", Arrays.asList("apple", "carrots"));
+    assertEquals("apples", StemDictionary.unstem(datastore, "1", "appl"));
+    assertEquals("apple", StemDictionary.unstem(datastore, "2", "appl"));
+    assertEquals("Bananas", StemDictionary.unstem(datastore, "2", "banana"));
+    assertEquals("carrots", StemDictionary.unstem(datastore, "3", "carrot"));
+  }
+
+  /**
+   * Checks that several words are unstemmed at once from the user's dictionary, the universal
+   * shards and the universal dictionary written before sharding, and that a changed shard is
+   * reloaded.
+   */
+  @Test
+  public void testUnstemSeveralWords() {
+    StemDictionary.saveWords(datastore, "1", Arrays.asList("apples", "Bananas"));
+    StemDictionary.saveWords(datastore, "2", Arrays.asList("apple", "carrots"));
+    Entity legacy = new Entity("UniversalStemDict", "1");
+    legacy.setProperty("donut", "Donuts");
+    datastore.put(legacy);
+
+    Map<String, String> words =
+        StemDictionary.unstem(datastore, "2", Arrays.asList("appl", "banana", "carrot", "donut"));
+    assertEquals(4, words.size());
+    assertEquals("apple", words.get("appl"));
+    assertEquals("Bananas", words.get("banana"));
+    assertEquals("carrots", words.get("carrot"));
+    assertEquals("Donuts", words.get("donut"));
+
+    Key shardKey = StemDictionary.universalKey("banana");
+    Entity shard = new Entity(shardKey);
+    shard.setProperty("banana", "banana");
+    datastore.put(shard);
+    assertEquals(
+        "Bananas", StemDictionary.unstem(datastore, "3", Arrays.asList("banana")).get("banana"));
+    MemcacheServiceFactory.getMemcacheService("stemDictionary")
+        .increment("UniversalStemDict:" + shardKey.getName(), 1L);
+    assertEquals(
+        "banana", StemDictionary.unstem(datastore, "3", Arrays.asList("banana")).get("banana"));
+  }
+
+  /** Checks that unstemming an unknown word throws an error. */
+  @Test(expected = IllegalStateException.class)
+  public void testUnknownStem() {
+    StemDictionary.saveWords(datastore, "1", Arrays.asList("apples"));
+    StemDictionary.unstem(datastore, "1", "donut");
+  }
+
+  /** Checks that words are written to the user's dictionary and to their universal shards. */
+  @Test
+  public void testShardedSave() throws Exception {
+    StemDictionary.saveWords(datastore, "1", Arrays.asList("apples", "bananas", "carrots"));
+    Entity user = datastore.get(StemDictionary.userKey("1"));
+    assertEquals(3, user.getProperties().size());
+    assertEquals("bananas", user.getProperty("banana"));
+    for (String stem : Arrays.asList("appl", "banana", "carrot")) {
+      Entity shard = datastore.get(StemDictionary.universalKey(stem));
+      assertEquals(user.getProperty(stem), shard.getProperty(stem));
+    }
+  }
+
+  /** Checks that words of the universal dictionary written before sharding are still found. */
+  @Test
+  public void testLegacyUniversalDictionary() {
+    Entity legacy = new Entity("UniversalStemDict", "1");
+    legacy.setProperty("donut", "Donuts");
+    datastore.put(legacy);
+    assertEquals("Donuts", StemDictionary.unstem(datastore, "1", "donut"));
+  }
+
+  /**
+   * Writes new words from many users concurrently, as a load test of the sharded universal
+   * dictionary, and checks that no word is lost.
+   */
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    int numUsers = 8;
+    int wordsPerUser = 40;
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(numUsers);
+    List<Future<?>> writes = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int user = 0; user < numUsers; user++) {
+      String userID = String.valueOf(user);
+      writes.add(
+          executor.submit(
+              () -> {
+                ApiProxy.setEnvironmentForCurrentThread(environment);
+                for (int word = 0; word < wordsPerUser; word++) {
+                  StemDictionary.saveWords(
+                      datastore, userID, Arrays.asList(word(userID, word), word(userID, -word)));
+                }
+              }));
+    }
+    for (Future<?> write : writes) {
+      write.get();
+    }
+    log.info(
+        "Saved "
+            + numUsers * wordsPerUser
+            + " word pairs from "
+            + numUsers
+            + " threads in "
+            + (System.nanoTime() - start) / 1000000
+            + " ms");
+    executor.shutdown();
+
+    StemDictionary.clear();
+    for (int user = 0; user < numUsers; user++) {
+      for (int word = -wordsPerUser + 1; word < wordsPerUser; word++) {
+        String expected = word("" + user, word);
+        assertEquals(expected, StemDictionary.unstem(datastore, "other", expected));
+      }
+    }
+  }
+
+  /** Returns a word that is its own stem and unique to the given user and index. */
+  private static String word(String userID, int index) {
+    return "u" + userID + (index < 0 ? "n" : "p") + Math.abs(index);
+  }
+
+  /**
+   * Checks that dictionaries are served from memory until their version changes, as when another
+   * instance writes them.
+   */
+  @Test
+  public void testCachedUntilInvalidated() {
+    StemDictionary.saveWords(datastore, "1", Arrays.asList("apples"));
+    assertEquals("apples", StemDictionary.unstem(datastore, "1", "appl"));
+
+    Entity user = new Entity(StemDictionary.userKey("1"));
+    user.setProperty("appl", "Apples");
+    datastore.put(user);
+    assertEquals("apples", StemDictionary.unstem(datastore, "1", "appl"));
+
+    MemcacheServiceFactory.getMemcacheService("stemDictionary").increment("StemDict:1", 1L);
+    assertEquals("Apples", StemDictionary.unstem(datastore, "1", "appl"));
+  }
+}
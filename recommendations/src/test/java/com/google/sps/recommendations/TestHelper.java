@@ -221,9 +221,7 @@ public class TestHelper {
     Entity entity = databaseQuery.get(0);
     for (int i = 0; i < expectedItems.size(); i++) {
       double itemFreq =
-          entity.getProperty(StemUtils.stemmed(expectedItems.get(i))) == null
-              ? 0.0
-              : (double) entity.getProperty(StemUtils.stemmed(expectedItems.get(i)));
+          DatabaseUtils.getFracWeight(entity, StemUtils.stemmed(expectedItems.get(i)));
       assertEquals(expectedCounts.get(i), itemFreq, 0.001);
     }
   }
@@ -241,7 +239,7 @@ public class TestHelper {
   public static void makeUserList(
       DatastoreService datastore, String userID, int size, List<Pair<String, Integer>> items) {
     for (int i = 0; i < size; i++) {
-      List<Pair<String, Integer>> itemsList = new ArrayList<>((List<Pair<String, Integer>>) items);
+      List<Pair<String, Integer>> itemsList = new ArrayList<>(items);
       final int temp = i;
       List<Pair<String, Integer>> filteredPairs =
           itemsList.stream().filter(e -> e.getValue() > temp).collect(Collectors.toList());